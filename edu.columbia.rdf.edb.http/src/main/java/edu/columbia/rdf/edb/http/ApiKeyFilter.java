@@ -0,0 +1,228 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Rejects API keys that do not belong to anyone without querying the
+ * database. Valid keys are held in a Bloom filter. Keys that pass the filter
+ * but turn out not to exist are remembered for a short time in a negative
+ * cache.
+ *
+ * So that newly issued keys are not rejected, a checksum of all the keys is
+ * read at most once per check interval and the filter and negative cache are
+ * discarded whenever it changes. The filter is also rebuilt once it reaches
+ * a maximum age.
+ *
+ * @author Antony Holmes
+ */
+public class ApiKeyFilter {
+
+  /** The Constant API_KEYS_SQL. */
+  private static final String API_KEYS_SQL = "SELECT persons.api_key FROM persons WHERE persons.api_key IS NOT NULL";
+
+  /** The Constant API_KEYS_CHECKSUM_SQL. */
+  private static final String API_KEYS_CHECKSUM_SQL = "SELECT md5(string_agg(persons.api_key, ',' ORDER BY persons.id)) FROM persons WHERE persons.api_key IS NOT NULL";
+
+  /** The Constant DEFAULT_MAX_AGE_MS. */
+  public static final long DEFAULT_MAX_AGE_MS = 300000;
+
+  /** The Constant MAX_INVALID_KEYS. */
+  private static final int MAX_INVALID_KEYS = 10000;
+
+  /** The Constant INVALID_KEY_TTL_MS. */
+  private static final long INVALID_KEY_TTL_MS = 60000;
+
+  /** The filter of valid keys or null if it must be rebuilt. */
+  private static final AtomicReference<BloomFilter> FILTER = new AtomicReference<BloomFilter>();
+
+  /** When the filter was built. */
+  private static final AtomicLong LOADED = new AtomicLong();
+
+  /** The Constant MAX_AGE. */
+  private static final AtomicLong MAX_AGE = new AtomicLong(
+      DEFAULT_MAX_AGE_MS);
+
+  /** The checksum of the keys when last read. */
+  private static final AtomicReference<String> CHECKSUM = new AtomicReference<String>();
+
+  /** When the checksum was last read. */
+  private static final AtomicLong LAST_CHECK = new AtomicLong();
+
+  /** The Constant CHECK_INTERVAL. */
+  private static final AtomicLong CHECK_INTERVAL = new AtomicLong(
+      DataVersion.DEFAULT_CHECK_INTERVAL_MS);
+
+  /** Keys recently found not to exist. */
+  private static final ConcurrentKeyValueStore<String, Boolean> INVALID_KEYS = new ConcurrentKeyValueStore<String, Boolean>(
+      MAX_INVALID_KEYS, ConcurrentKeyValueStore.EvictionPolicy.LRU,
+      INVALID_KEY_TTL_MS);
+
+  /**
+   * Instantiates a new api key filter.
+   */
+  private ApiKeyFilter() {
+    // Do nothing
+  }
+
+  /**
+   * Sets how long the filter is used before it is rebuilt to pick up new
+   * keys.
+   *
+   * @param maxAge the max age in milliseconds.
+   */
+  public static void setMaxAge(long maxAge) {
+    MAX_AGE.set(maxAge);
+  }
+
+  /**
+   * Sets how often the key checksum is read, which bounds how long a newly
+   * issued key can be rejected.
+   *
+   * @param intervalMs the interval in milliseconds.
+   */
+  public static void setCheckInterval(long intervalMs) {
+    CHECK_INTERVAL.set(intervalMs);
+  }
+
+  /**
+   * Returns false if a key definitely does not belong to anyone, in which
+   * case it should be rejected without querying the database.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param key the key
+   * @return true if the key may be valid.
+   */
+  public static boolean mightExist(JdbcTemplate jdbcTemplate, String key) {
+    // Negative answers are only trusted while the keys are unchanged
+    checkKeys(jdbcTemplate);
+
+    if (INVALID_KEYS.contains(key)) {
+      return false;
+    }
+
+    return getFilter(jdbcTemplate).mightContain(key);
+  }
+
+  /**
+   * Record that a key which passed the filter does not exist.
+   *
+   * @param key the key
+   */
+  public static void addInvalid(String key) {
+    INVALID_KEYS.put(key, Boolean.TRUE);
+  }
+
+  /**
+   * Discard the filter and negative cache, for example after a key has been
+   * issued, so that they are rebuilt on next use.
+   */
+  public static void clear() {
+    FILTER.set(null);
+    INVALID_KEYS.clear();
+  }
+
+  /**
+   * Read the key checksum if the check interval has elapsed and discard the
+   * filter and negative cache if it has changed. Only one caller per interval
+   * reads the checksum.
+   *
+   * @param jdbcTemplate the jdbc template
+   */
+  private static void checkKeys(JdbcTemplate jdbcTemplate) {
+    long now = System.currentTimeMillis();
+    long last = LAST_CHECK.get();
+
+    if (now - last < CHECK_INTERVAL.get()
+        || !LAST_CHECK.compareAndSet(last, now)) {
+      return;
+    }
+
+    String checksum = Query.asString(jdbcTemplate, API_KEYS_CHECKSUM_SQL);
+
+    if (!checksum.equals(CHECKSUM.getAndSet(checksum))) {
+      clear();
+    }
+  }
+
+  /**
+   * Returns the filter, rebuilding it if it has been cleared or is too old.
+   * Only one thread rebuilds the filter; others wait for it.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @return the filter
+   */
+  private static BloomFilter getFilter(JdbcTemplate jdbcTemplate) {
+    BloomFilter ret = FILTER.get();
+
+    if (ret == null || isExpired()) {
+      synchronized (FILTER) {
+        ret = FILTER.get();
+
+        if (ret == null || isExpired()) {
+          ret = load(jdbcTemplate);
+          FILTER.set(ret);
+          LOADED.set(System.currentTimeMillis());
+        }
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Checks if the filter has reached its maximum age.
+   *
+   * @return true, if is expired
+   */
+  private static boolean isExpired() {
+    return System.currentTimeMillis() - LOADED.get() >= MAX_AGE.get();
+  }
+
+  /**
+   * Build a filter of all the API keys.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @return the bloom filter
+   */
+  private static BloomFilter load(JdbcTemplate jdbcTemplate) {
+    final List<String> keys = new ArrayList<String>(1000);
+
+    jdbcTemplate.query(API_KEYS_SQL, new RowCallbackHandler() {
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        keys.add(rs.getString(1));
+      }
+    });
+
+    BloomFilter ret = new BloomFilter(keys.size());
+
+    for (String key : keys) {
+      ret.add(key);
+    }
+
+    return ret;
+  }
+}
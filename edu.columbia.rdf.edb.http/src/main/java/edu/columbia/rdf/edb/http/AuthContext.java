@@ -0,0 +1,254 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Everything needed to authenticate a request made with an API key: the
+ * person the key belongs to, their TOTP phrase, user type, groups and the IP
+ * addresses they may connect from. Contexts are loaded with a single query
+ * and cached for a short time so that authenticating a request usually does
+ * not touch the database.
+ *
+ * @author Antony Holmes
+ */
+public class AuthContext {
+
+  /** Matches any IP address. */
+  public static final String ANY_IP_ADDRESS = "*";
+
+  /** The Constant AUTH_CONTEXT_SQL. */
+  private static final String AUTH_CONTEXT_SQL = "SELECT persons.id, persons.totp_phrase, "
+      + "EXISTS (SELECT groups.id FROM groups, groups_persons WHERE groups.id = groups_persons.group_id AND groups_persons.person_id = persons.id AND groups.name = 'Administrator'), "
+      + "EXISTS (SELECT groups.id FROM groups, groups_persons WHERE groups.id = groups_persons.group_id AND groups_persons.person_id = persons.id AND groups.name = 'Superuser'), "
+      + "ARRAY(SELECT groups_persons.group_id FROM groups_persons WHERE groups_persons.person_id = persons.id ORDER BY groups_persons.group_id), "
+      + "ARRAY(SELECT login_ip_address.ip_address FROM login_ip_address WHERE login_ip_address.person_id = persons.id) "
+      + "FROM persons WHERE persons.api_key = ?";
+
+  /** The Constant MAX_CACHED_CONTEXTS. */
+  private static final int MAX_CACHED_CONTEXTS = 1000;
+
+  /** The Constant DEFAULT_TTL_MS. */
+  public static final long DEFAULT_TTL_MS = 300000;
+
+  /** Contexts keyed on API key. */
+  private static final ConcurrentKeyValueStore<String, AuthContext> CONTEXTS = new ConcurrentKeyValueStore<String, AuthContext>(
+      MAX_CACHED_CONTEXTS, ConcurrentKeyValueStore.EvictionPolicy.LRU,
+      DEFAULT_TTL_MS);
+
+  /** The Constant AUTH_CONTEXT_MAPPER. */
+  private static final RowMapper<AuthContext> AUTH_CONTEXT_MAPPER = new RowMapper<AuthContext>() {
+    @Override
+    public AuthContext mapRow(ResultSet rs, int rowNum) throws SQLException {
+      UserType userType;
+
+      if (rs.getBoolean(3)) {
+        userType = UserType.ADMINISTRATOR;
+      } else if (rs.getBoolean(4)) {
+        userType = UserType.SUPERUSER;
+      } else {
+        userType = UserType.NORMAL;
+      }
+
+      Object[] groupIds = getArray(rs.getArray(5));
+      Object[] ipAddresses = getArray(rs.getArray(6));
+
+      int[] gids = new int[groupIds.length];
+
+      for (int i = 0; i < gids.length; ++i) {
+        gids[i] = ((Number) groupIds[i]).intValue();
+      }
+
+      String[] ips = new String[ipAddresses.length];
+
+      for (int i = 0; i < ips.length; ++i) {
+        ips[i] = String.valueOf(ipAddresses[i]);
+      }
+
+      return new AuthContext(rs.getInt(1), rs.getString(2), userType, gids,
+          ips);
+    }
+  };
+
+  /** The m person id. */
+  private final int mPersonId;
+
+  /** The m totp phrase. */
+  private final String mTotpPhrase;
+
+  /** The m user type. */
+  private final UserType mUserType;
+
+  /** The group ids in ascending order. */
+  private final int[] mGroupIds;
+
+  /** The IP addresses the person may connect from. */
+  private final IpAllowList mIpAddresses;
+
+  /**
+   * Instantiates a new auth context.
+   *
+   * @param personId the person id
+   * @param totpPhrase the totp phrase
+   * @param userType the user type
+   * @param groupIds the group ids in ascending order.
+   * @param ipAddresses the ip addresses
+   */
+  private AuthContext(int personId, String totpPhrase, UserType userType,
+      int[] groupIds, String[] ipAddresses) {
+    mPersonId = personId;
+    mTotpPhrase = totpPhrase;
+    mUserType = userType;
+    mGroupIds = groupIds;
+    mIpAddresses = new IpAllowList(ipAddresses);
+  }
+
+  /**
+   * Gets the person id.
+   *
+   * @return the person id
+   */
+  public int getPersonId() {
+    return mPersonId;
+  }
+
+  /**
+   * Gets the TOTP phrase.
+   *
+   * @return the TOTP phrase
+   */
+  public String getTotpPhrase() {
+    return mTotpPhrase;
+  }
+
+  /**
+   * Gets the user type.
+   *
+   * @return the user type
+   */
+  public UserType getUserType() {
+    return mUserType;
+  }
+
+  /**
+   * Gets the ids of the groups the person belongs to.
+   *
+   * @return a copy of the group ids in ascending order.
+   */
+  public int[] getGroupIds() {
+    return Arrays.copyOf(mGroupIds, mGroupIds.length);
+  }
+
+  /**
+   * Returns true if the person belongs to a group.
+   *
+   * @param groupId the group id
+   * @return true, if successful
+   */
+  public boolean inGroup(int groupId) {
+    return Arrays.binarySearch(mGroupIds, groupId) >= 0;
+  }
+
+  /**
+   * Returns true if the person may connect from an IP address.
+   *
+   * @param ipAddress the ip address
+   * @return true, if is allowed
+   */
+  public boolean isAllowedIPAddress(String ipAddress) {
+    return mIpAddresses.matches(ipAddress);
+  }
+
+  /**
+   * Returns the context of an API key, loading it if it is not cached.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param key the API key
+   * @return the context or null if no person has the key.
+   */
+  public static AuthContext get(JdbcTemplate jdbcTemplate, String key) {
+    AuthContext ret = CONTEXTS.get(key);
+
+    if (ret == null) {
+      // Reject unknown keys without a query
+      if (!ApiKeyFilter.mightExist(jdbcTemplate, key)) {
+        return null;
+      }
+
+      ret = Query.query(jdbcTemplate, AUTH_CONTEXT_SQL, AUTH_CONTEXT_MAPPER,
+          key);
+
+      if (ret != null) {
+        CONTEXTS.put(key, ret);
+      } else {
+        ApiKeyFilter.addInvalid(key);
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Forget the cached context of an API key, for example after the key has
+   * been revoked. Session tokens issued to the owner of the key are revoked
+   * too.
+   *
+   * @param key the API key
+   */
+  public static void remove(String key) {
+    AuthContext context = CONTEXTS.get(key);
+
+    CONTEXTS.remove(key);
+
+    if (context != null) {
+      SessionTokens.revoke(context.getPersonId());
+    }
+  }
+
+  /**
+   * Forget all cached contexts and session token credentials.
+   */
+  public static void clear() {
+    CONTEXTS.clear();
+    SessionTokens.clear();
+  }
+
+  /**
+   * Returns the contents of an SQL array.
+   *
+   * @param array the array
+   * @return the contents or an empty array if the array is null.
+   * @throws SQLException the SQL exception
+   */
+  private static Object[] getArray(Array array) throws SQLException {
+    if (array == null) {
+      return new Object[0];
+    }
+
+    try {
+      return (Object[]) array.getArray();
+    } finally {
+      array.free();
+    }
+  }
+}
@@ -34,10 +34,8 @@ public class AuthController extends DBController {
     
     if (WebAuth.isKey(key)) {
       ret.add(AuthBean.validKeyFormat(key));
-      
-      int userId = WebAuth.getUserIdFromAPIKey(mJdbcTemplate, key);
 
-      if (userId != -1) {
+      if (AuthContext.get(mJdbcTemplate, key) != null) {
         ret.add(new AuthBean(key, AuthStatus.VALID_USER));
       } else {
         ret.add(AuthBean.invalidUser(key));
@@ -50,37 +48,109 @@ public class AuthController extends DBController {
     return ret;
   }
   
+  /**
+   * Exchange an API key and TOTP code for a session token that can be
+   * passed as the key, with any TOTP code, until it expires. Tokens cannot
+   * be used to obtain new tokens.
+   *
+   * @param request
+   * @param key
+   * @param totp
+   * @return
+   */
+  @RequestMapping("/token")
+  public SessionTokenBean token(HttpServletRequest request,
+      @RequestParam(value = "key", defaultValue = "") String key,
+      @RequestParam(value = "totp", defaultValue = "-1") int totp) {
+
+    if (!WebAuth.isKey(key)) {
+      return new SessionTokenBean(AuthStatus.INVALID_KEY_FORMAT);
+    }
+
+    AuthBean auth = authenticate(request.getServletContext(),
+        request,
+        mJdbcTemplate,
+        key,
+        totp);
+
+    if (auth.getStatus() != AuthStatus.SUCCESS) {
+      return new SessionTokenBean(auth.getStatus());
+    }
+
+    long expires = System.currentTimeMillis() + SessionTokens.getTtl();
+
+    String token = SessionTokens.issue(mJdbcTemplate,
+        auth.getId(),
+        auth.getUserType(),
+        request.getRemoteAddr(),
+        expires);
+
+    return new SessionTokenBean(AuthStatus.SUCCESS, token, expires);
+  }
+
+  /**
+   * Return the counters of the background login attempt writer so that
+   * dropped or failed writes can be monitored. Only administrators may see
+   * them.
+   *
+   * @param request
+   * @param key
+   * @param totp
+   * @return
+   */
+  @RequestMapping("/login_writer")
+  public LoginWriterBean loginWriter(HttpServletRequest request,
+      @RequestParam(value = "key", defaultValue = "") String key,
+      @RequestParam(value = "totp", defaultValue = "-1") int totp) {
+
+    AuthBean auth = authenticate(request.getServletContext(),
+        request,
+        mJdbcTemplate,
+        key,
+        totp);
+
+    if (auth.getStatus() != AuthStatus.SUCCESS) {
+      return new LoginWriterBean(auth.getStatus());
+    }
+
+    if (auth.getUserType() != UserType.ADMINISTRATOR) {
+      return new LoginWriterBean(AuthStatus.INVALID_USER);
+    }
+
+    return new LoginWriterBean(LoginWriter.get());
+  }
+
   public static AuthBean authenticate(ServletContext context,
       HttpServletRequest request,
       JdbcTemplate jdbcTemplate,
       String key,
       int totp) {
-    
+
+    // Session tokens are verified in memory and replace the TOTP check
+    if (SessionTokens.isToken(key)) {
+      return SessionTokens.verify(jdbcTemplate,
+          key,
+          request.getRemoteAddr());
+    }
+
     if (!WebAuth.isKey(key)) {
       return AuthBean.invalidKeyFormat(key);
     }
 
-    int userId = WebAuth.getUserIdFromAPIKey(jdbcTemplate, key);
+    // Everything needed to authenticate the user is loaded in one query
+    // and cached
+    AuthContext authContext = AuthContext.get(jdbcTemplate, key);
 
-    if (userId == -1) {
+    if (authContext == null) {
       return AuthBean.invalidUser(key);
     }
 
-    boolean auth = WebAuth
-        .totpAuthUser(context, request, jdbcTemplate, userId, totp);
+    int userId = authContext.getPersonId();
 
-    if (auth) {
-      UserType userType;
+    boolean auth = WebAuth.totpAuthUser(context, request, authContext, totp);
 
-      if (Persons.isAdmin(jdbcTemplate, userId)) {
-        userType = UserType.ADMINISTRATOR;
-      } else if (Persons.isSuper(jdbcTemplate, userId)) {
-        userType = UserType.SUPERUSER;
-      } else {
-        userType = UserType.NORMAL;
-      }
-
-      return new AuthBean(userId, key, userType);
+    if (auth) {
+      return new AuthBean(userId, key, authContext.getUserType());
     } else {
       return new AuthBean(userId, key, AuthStatus.INVALID_TOTP);
     }
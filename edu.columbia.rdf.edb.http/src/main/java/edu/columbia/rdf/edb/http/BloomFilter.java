@@ -0,0 +1,153 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A fixed size Bloom filter of strings. Lookups may report a string that
+ * was never added (with roughly the false positive rate the filter was
+ * sized for) but never miss a string that was. The filter is not
+ * synchronized; it is intended to be filled once and then only read.
+ *
+ * @author Antony Holmes
+ */
+public class BloomFilter {
+
+  /** The Constant DEFAULT_FALSE_POSITIVE_RATE. */
+  public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+  /** The m bits. */
+  private final long[] mBits;
+
+  /** The number of bits. */
+  private final int mM;
+
+  /** The number of hash functions. */
+  private final int mK;
+
+  /**
+   * Instantiates a new bloom filter sized to hold n strings with the
+   * default false positive rate.
+   *
+   * @param n the expected number of strings.
+   */
+  public BloomFilter(int n) {
+    this(n, DEFAULT_FALSE_POSITIVE_RATE);
+  }
+
+  /**
+   * Instantiates a new bloom filter.
+   *
+   * @param n the expected number of strings.
+   * @param p the false positive rate.
+   */
+  public BloomFilter(int n, double p) {
+    n = Math.max(1, n);
+
+    long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+
+    mM = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+    mK = Math.max(1, (int) Math.round((double) mM / n * Math.log(2)));
+    mBits = new long[(mM + 63) / 64];
+  }
+
+  /**
+   * Adds a string.
+   *
+   * @param s the s
+   */
+  public void add(String s) {
+    long h = hash(s);
+
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32);
+
+    for (int i = 0; i < mK; ++i) {
+      int bit = index(h1 + i * h2);
+
+      mBits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Returns false if a string was definitely not added and true if it
+   * probably was.
+   *
+   * @param s the s
+   * @return true, if successful
+   */
+  public boolean mightContain(String s) {
+    long h = hash(s);
+
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32);
+
+    for (int i = 0; i < mK; ++i) {
+      int bit = index(h1 + i * h2);
+
+      if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the approximate memory used by the filter.
+   *
+   * @return the size in bytes.
+   */
+  public long sizeInBytes() {
+    return 8L * mBits.length + 32;
+  }
+
+  /**
+   * Map a hash to a bit.
+   *
+   * @param h the h
+   * @return the bit index
+   */
+  private int index(int h) {
+    return (h & Integer.MAX_VALUE) % mM;
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the UTF-8 bytes of a string, from which the two
+   * 32 bit hashes used for double hashing are taken.
+   *
+   * @param s the s
+   * @return the hash
+   */
+  private static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+
+    for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+
+    // Mix the bits so that both halves depend on the whole string
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+
+    return h;
+  }
+}
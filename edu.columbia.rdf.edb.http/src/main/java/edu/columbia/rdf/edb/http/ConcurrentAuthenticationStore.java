@@ -15,20 +15,99 @@
  */
 package edu.columbia.rdf.edb.http;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Stores mappings of keys, ip addresses and person ids to lower requests to the
- * database.
+ * database. Entries are keyed by the (key, ip address) pair so that a lookup
+ * is a single probe of a concurrent map. Entries can expire after a fixed
+ * time and the number of entries can be bounded.
  * 
  * @author Antony Holmes
  *
  */
 public class ConcurrentAuthenticationStore implements ConcurrentStore {
 
+  /** Returned by lookup() when there is no valid mapping. */
+  public static final int NOT_FOUND = -1;
+
+  /**
+   * Composite key of an api key and an ip address.
+   */
+  private static final class AuthKey {
+
+    /** The m key. */
+    private final String mKey;
+
+    /** The m ip address. */
+    private final String mIpAddress;
+
+    /** The m hash. */
+    private final int mHash;
+
+    /**
+     * Instantiates a new auth key.
+     *
+     * @param key the key
+     * @param ipAddress the ip address
+     */
+    public AuthKey(String key, String ipAddress) {
+      mKey = key;
+      mIpAddress = ipAddress;
+      mHash = 31 * key.hashCode() + ipAddress.hashCode();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return mHash;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (!(o instanceof AuthKey)) {
+        return false;
+      }
+
+      AuthKey k = (AuthKey) o;
+
+      return mHash == k.mHash && mKey.equals(k.mKey)
+          && mIpAddress.equals(k.mIpAddress);
+    }
+  }
+
   /** The map. */
-  private Map<String, Map<String, Integer>> map = new HashMap<String, Map<String, Integer>>();
+  private final ConcurrentKeyValueStore<AuthKey, Integer> mMap;
+
+  /**
+   * Instantiates a new unbounded store whose entries do not expire.
+   */
+  public ConcurrentAuthenticationStore() {
+    this(ConcurrentKeyValueStore.UNBOUNDED,
+        ConcurrentKeyValueStore.NO_EXPIRY);
+  }
+
+  /**
+   * Instantiates a new concurrent authentication store.
+   *
+   * @param maxSize the maximum number of (key, ip address) pairs to store.
+   * @param ttl how long in milliseconds an entry remains valid.
+   */
+  public ConcurrentAuthenticationStore(int maxSize, long ttl) {
+    mMap = new ConcurrentKeyValueStore<AuthKey, Integer>(maxSize,
+        ConcurrentKeyValueStore.EvictionPolicy.LRU, ttl);
+  }
 
   /**
    * Put.
@@ -37,49 +116,69 @@ public class ConcurrentAuthenticationStore implements ConcurrentStore {
    * @param ipAddress the ip address
    * @param personId the person id
    */
-  public synchronized void put(String key, String ipAddress, int personId) {
-    if (!map.containsKey(key)) {
-      map.put(key, new HashMap<String, Integer>());
+  public void put(String key, String ipAddress, int personId) {
+    if (key == null || ipAddress == null) {
+      return;
     }
 
-    map.get(key).put(ipAddress, personId);
+    mMap.put(new AuthKey(key, ipAddress), personId);
   }
 
   /**
-   * Returns the person id associated with the key mapping to a given ip
-   * address. If either the key and ip address do not partner, -1 will be
-   * returned indicating this is not a valid authentication.
+   * Returns the person associated with a key for a given ip address, or
+   * NOT_FOUND if the key and ip address do not partner or the mapping has
+   * expired.
    *
    * @param key the key
    * @param ipAddress the ip address
-   * @return true, if successful
+   * @return the person id or NOT_FOUND.
    */
-  public synchronized boolean contains(String key, String ipAddress) {
-    if (!map.containsKey(key)) {
-      return false;
+  public int lookup(String key, String ipAddress) {
+    if (key == null || ipAddress == null) {
+      return NOT_FOUND;
     }
 
-    return map.get(key).containsKey(ipAddress);
+    Integer personId = mMap.get(new AuthKey(key, ipAddress));
+
+    return personId != null ? personId : NOT_FOUND;
+  }
+
+  /**
+   * Returns true if the key maps to the given ip address. Prefer lookup()
+   * which tests and fetches the person in one probe.
+   *
+   * @param key the key
+   * @param ipAddress the ip address
+   * @return true, if successful
+   */
+  public boolean contains(String key, String ipAddress) {
+    return lookup(key, ipAddress) != NOT_FOUND;
+  }
+
+  /**
+   * Returns the person associated with a key for a given ip address.
+   *
+   * @param key the key
+   * @param ipAddress the ip address
+   * @return the person id or NOT_FOUND.
+   * @see #lookup(String, String)
+   */
+  public int get(String key, String ipAddress) {
+    return lookup(key, ipAddress);
   }
 
   /**
-   * Returns the person associated with a key for a given ip address. There is
-   * no check on whether the key and ip address have a match for speed. Use
-   * contains() to check there is a valid mapping before calling this method.
-   * This was done so that only one check is required to test if a mapping
-   * exists, otherwise contains() would be run twice, once to check if a mapping
-   * exists and again when requesting the person id.
+   * Remove the mapping of a key and ip address.
    *
    * @param key the key
    * @param ipAddress the ip address
-   * @return the int
    */
-  public synchronized int get(String key, String ipAddress) {
-    // if (!contains(key, ipAddress)) {
-    // return -1;
-    // }
+  public void remove(String key, String ipAddress) {
+    if (key == null || ipAddress == null) {
+      return;
+    }
 
-    return map.get(key).get(ipAddress);
+    mMap.remove(new AuthKey(key, ipAddress));
   }
 
   /*
@@ -89,6 +188,6 @@ public class ConcurrentAuthenticationStore implements ConcurrentStore {
    */
   @Override
   public void clear() {
-    map.clear();
+    mMap.clear();
   }
 }
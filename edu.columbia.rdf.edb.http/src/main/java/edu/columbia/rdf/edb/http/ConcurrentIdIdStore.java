@@ -4,9 +4,9 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -15,12 +15,390 @@
  */
 package edu.columbia.rdf.edb.http;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
 /**
- * Stores ids and their associated string value.
+ * Stores a relation between int ids, for example samples and their
+ * experiments, with lookups in both directions. Ids are held in sorted
+ * primitive arrays so lookups are binary searches with no boxing.
+ *
+ * The store is an immutable snapshot that is replaced atomically, so reads
+ * never lock. It is intended to be bulk loaded in one pass from a result set
+ * whose first two columns are the key and value ids. A store can be given a
+ * maximum age after which ensureLoaded() reloads it.
  *
  * @author Antony Holmes
  */
 public class ConcurrentIdIdStore
-    extends ConcurrentKeyValueStore<Integer, Integer> {
-  // do nothing
+    extends ConcurrentSnapshotStore<ConcurrentIdIdStore.Snapshot> {
+
+  /** Returned when an id has no mapping. */
+  public static final int NOT_FOUND = -1;
+
+  /** The same ten minutes the ehcache caches these stores replace use. */
+  public static final long DEFAULT_MAX_AGE_MS = 600000;
+
+  /** The Constant EMPTY. */
+  private static final int[] EMPTY = new int[0];
+
+  /**
+   * Maps each key to the values it is associated with in compressed sparse
+   * row format.
+   */
+  private static final class Index {
+
+    /** The unique keys in ascending order. */
+    private final int[] mKeys;
+
+    /** The values of key i are in mValues[mOffsets[i]..mOffsets[i + 1]). */
+    private final int[] mOffsets;
+
+    /** The m values. */
+    private final int[] mValues;
+
+    /**
+     * Instantiates a new index from pairs, with the key in the upper 32
+     * bits and the value in the lower, sorted with duplicates removed.
+     *
+     * @param pairs the pairs
+     * @param n the number of pairs.
+     */
+    public Index(long[] pairs, int n) {
+      int[] keys = new int[n];
+      int[] offsets = new int[n + 1];
+      mValues = new int[n];
+
+      int k = 0;
+
+      for (int i = 0; i < n; ++i) {
+        int key = upper(pairs[i]);
+
+        if (k == 0 || keys[k - 1] != key) {
+          keys[k] = key;
+          offsets[k] = i;
+          ++k;
+        }
+
+        mValues[i] = lower(pairs[i]);
+      }
+
+      offsets[k] = n;
+
+      mKeys = Arrays.copyOf(keys, k);
+      mOffsets = Arrays.copyOf(offsets, k + 1);
+    }
+
+    /**
+     * Gets the first value of a key.
+     *
+     * @param key the key
+     * @return the value or NOT_FOUND.
+     */
+    public int get(int key) {
+      int i = Arrays.binarySearch(mKeys, key);
+
+      return i >= 0 ? mValues[mOffsets[i]] : NOT_FOUND;
+    }
+
+    /**
+     * Gets all the values of a key.
+     *
+     * @param key the key
+     * @return the values
+     */
+    public int[] getAll(int key) {
+      int i = Arrays.binarySearch(mKeys, key);
+
+      if (i < 0) {
+        return EMPTY;
+      }
+
+      return Arrays.copyOfRange(mValues, mOffsets[i], mOffsets[i + 1]);
+    }
+  }
+
+  /**
+   * The forward and reverse indices of the relation.
+   */
+  static final class Snapshot {
+
+    /** The m forward. */
+    private final Index mForward;
+
+    /** The m reverse. */
+    private final Index mReverse;
+
+    /**
+     * Instantiates a new snapshot.
+     *
+     * @param keys the keys
+     * @param values the values
+     * @param n the number of pairs.
+     */
+    public Snapshot(int[] keys, int[] values, int n) {
+      long[] pairs = new long[n];
+
+      for (int i = 0; i < n; ++i) {
+        pairs[i] = pair(keys[i], values[i]);
+      }
+
+      int m = sortUnique(pairs, n);
+
+      mForward = new Index(pairs, m);
+
+      for (int i = 0; i < m; ++i) {
+        pairs[i] = pair(lower(pairs[i]), upper(pairs[i]));
+      }
+
+      mReverse = new Index(pairs, sortUnique(pairs, m));
+    }
+
+    /**
+     * Returns the number of (key, value) pairs.
+     *
+     * @return the int
+     */
+    public int size() {
+      return mForward.mValues.length;
+    }
+  }
+
+  /**
+   * Instantiates a new store that is kept until it is cleared.
+   */
+  public ConcurrentIdIdStore() {
+    // Do nothing
+  }
+
+  /**
+   * Instantiates a new store that is reloaded once it is older than a
+   * maximum age.
+   *
+   * @param maxAge the max age in milliseconds or
+   *          ConcurrentKeyValueStore.NO_EXPIRY.
+   */
+  public ConcurrentIdIdStore(long maxAge) {
+    super(maxAge);
+  }
+
+  /**
+   * Put a single mapping. Every put rebuilds the whole snapshot, so use
+   * putAll() to add several mappings and load() to populate the store.
+   *
+   * @param key the key
+   * @param value the value
+   */
+  public void put(int key, int value) {
+    putAll(new int[] { key }, new int[] { value });
+  }
+
+  /**
+   * Add a batch of mappings. Since the store is immutable this copies the
+   * existing mappings and rebuilds the snapshot once for the whole batch.
+   *
+   * @param keys the keys
+   * @param values the values, one for each key.
+   */
+  public synchronized void putAll(int[] keys, int[] values) {
+    if (keys.length != values.length) {
+      throw new IllegalArgumentException(
+          "There must be one value for each key.");
+    }
+
+    Snapshot snapshot = getSnapshot();
+
+    int n = snapshot != null ? snapshot.size() : 0;
+    int m = n + keys.length;
+
+    int[] allKeys = new int[m];
+    int[] allValues = new int[m];
+
+    if (snapshot != null) {
+      Index index = snapshot.mForward;
+
+      for (int i = 0; i < index.mKeys.length; ++i) {
+        for (int j = index.mOffsets[i]; j < index.mOffsets[i + 1]; ++j) {
+          allKeys[j] = index.mKeys[i];
+          allValues[j] = index.mValues[j];
+        }
+      }
+    }
+
+    System.arraycopy(keys, 0, allKeys, n, keys.length);
+    System.arraycopy(values, 0, allValues, n, values.length);
+
+    // New mappings do not refresh the rest of the store
+    update(new Snapshot(allKeys, allValues, m));
+  }
+
+  /**
+   * Contains.
+   *
+   * @param key the key
+   * @return true, if successful
+   */
+  public boolean contains(int key) {
+    return get(key) != NOT_FOUND;
+  }
+
+  /**
+   * Gets the value mapped to a key. If the key maps to more than one value,
+   * the lowest is returned.
+   *
+   * @param key the key
+   * @return the value or NOT_FOUND.
+   */
+  public int get(int key) {
+    Snapshot snapshot = getSnapshot();
+
+    return snapshot != null ? snapshot.mForward.get(key) : NOT_FOUND;
+  }
+
+  /**
+   * Gets the values mapped to each of a list of keys.
+   *
+   * @param keys the keys
+   * @return the values, in the same order as the keys, with NOT_FOUND for
+   *         keys that have no mapping.
+   */
+  public int[] getAll(int[] keys) {
+    Snapshot snapshot = getSnapshot();
+
+    int[] ret = new int[keys.length];
+
+    for (int i = 0; i < keys.length; ++i) {
+      ret[i] = snapshot != null ? snapshot.mForward.get(keys[i]) : NOT_FOUND;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Gets all the values mapped to a key.
+   *
+   * @param key the key
+   * @return the values in ascending order.
+   */
+  public int[] getValues(int key) {
+    Snapshot snapshot = getSnapshot();
+
+    return snapshot != null ? snapshot.mForward.getAll(key) : EMPTY;
+  }
+
+  /**
+   * Reverse lookup of the key mapped to a value. If more than one key maps
+   * to the value, the lowest is returned.
+   *
+   * @param value the value
+   * @return the key or NOT_FOUND.
+   */
+  public int getKey(int value) {
+    Snapshot snapshot = getSnapshot();
+
+    return snapshot != null ? snapshot.mReverse.get(value) : NOT_FOUND;
+  }
+
+  /**
+   * Reverse lookup of all the keys mapped to a value.
+   *
+   * @param value the value
+   * @return the keys in ascending order.
+   */
+  public int[] getKeys(int value) {
+    Snapshot snapshot = getSnapshot();
+
+    return snapshot != null ? snapshot.mReverse.getAll(value) : EMPTY;
+  }
+
+  /**
+   * Returns the number of mappings.
+   *
+   * @return the int
+   */
+  public int size() {
+    Snapshot snapshot = getSnapshot();
+
+    return snapshot != null ? snapshot.size() : 0;
+  }
+
+  /**
+   * Read (key, value) pairs from the first two columns of a result set.
+   *
+   * @param rs the rs
+   * @return the snapshot
+   * @throws SQLException the SQL exception
+   */
+  @Override
+  protected Snapshot read(ResultSet rs) throws SQLException {
+    int[] keys = new int[1024];
+    int[] values = new int[1024];
+    int n = 0;
+
+    while (rs.next()) {
+      if (n == keys.length) {
+        keys = Arrays.copyOf(keys, n * 2);
+        values = Arrays.copyOf(values, n * 2);
+      }
+
+      keys[n] = rs.getInt(1);
+      values[n] = rs.getInt(2);
+      ++n;
+    }
+
+    return new Snapshot(keys, values, n);
+  }
+
+  /**
+   * Sort pairs and remove duplicates.
+   *
+   * @param pairs the pairs
+   * @param n the number of pairs.
+   * @return the number of unique pairs.
+   */
+  private static int sortUnique(long[] pairs, int n) {
+    Arrays.sort(pairs, 0, n);
+
+    int m = 0;
+
+    for (int i = 0; i < n; ++i) {
+      if (m == 0 || pairs[m - 1] != pairs[i]) {
+        pairs[m++] = pairs[i];
+      }
+    }
+
+    return m;
+  }
+
+  /**
+   * Pack two ids into a long that sorts by the first id then the second.
+   *
+   * @param id1 the id 1
+   * @param id2 the id 2
+   * @return the long
+   */
+  private static long pair(int id1, int id2) {
+    return ((long) id1 << 32) | (id2 & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Upper.
+   *
+   * @param pair the pair
+   * @return the int
+   */
+  private static int upper(long pair) {
+    return (int) (pair >> 32);
+  }
+
+  /**
+   * Lower.
+   *
+   * @param pair the pair
+   * @return the int
+   */
+  private static int lower(long pair) {
+    return (int) pair;
+  }
 }
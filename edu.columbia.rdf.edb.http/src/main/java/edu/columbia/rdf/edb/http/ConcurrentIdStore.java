@@ -15,16 +15,104 @@
  */
 package edu.columbia.rdf.edb.http;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * The Class ConcurrentIdStore.
+ * Stores a boolean for each (key id, id) pair, for example whether a user
+ * can view a sample. For each key id, two bitmaps are kept: the ids whose
+ * value is known and the ids whose value is true (allowed). Each key id has
+ * its own lock so that lookups for different users do not contend.
+ *
+ * The memory used by each key is tracked and, if the store is bounded,
+ * whole keys are evicted, least recently used first, once the total exceeds
+ * the limit. Keys can also expire a fixed time after they were created,
+ * however often they are updated.
  */
 public class ConcurrentIdStore implements ConcurrentStore {
 
-  /** The map. */
-  private Map<Integer, Map<Integer, Boolean>> map = new HashMap<Integer, Map<Integer, Boolean>>();
+  /**
+   * The known and allowed ids of a key.
+   */
+  private static class Entry {
+
+    /** The m lock. */
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    /** The ids whose value has been stored. */
+    private IdBitmap mKnown = new IdBitmap();
+
+    /** The ids whose value is true. */
+    private IdBitmap mAllowed = new IdBitmap();
+
+    /** When the entry was created. */
+    private final long mCreated = System.currentTimeMillis();
+
+    /**
+     * Returns the approximate memory used by the entry.
+     *
+     * @return the size in bytes.
+     */
+    public long sizeInBytes() {
+      mLock.readLock().lock();
+
+      try {
+        return mKnown.sizeInBytes() + mAllowed.sizeInBytes() + 64;
+      } finally {
+        mLock.readLock().unlock();
+      }
+    }
+  }
+
+  /** The Constant ENTRY_WEIGHER. */
+  private static final ConcurrentKeyValueStore.Weigher<Entry> ENTRY_WEIGHER = new ConcurrentKeyValueStore.Weigher<Entry>() {
+    @Override
+    public long weigh(Entry entry) {
+      return entry.sizeInBytes();
+    }
+  };
+
+  /** The entries. */
+  private final ConcurrentKeyValueStore<Integer, Entry> mEntries;
+
+  /** The m ttl. */
+  private final long mTtl;
+
+  /**
+   * Instantiates a new unbounded store.
+   */
+  public ConcurrentIdStore() {
+    this(ConcurrentKeyValueStore.UNBOUNDED);
+  }
+
+  /**
+   * Instantiates a new store that evicts whole keys once its entries use
+   * more than max bytes.
+   *
+   * @param maxBytes the max bytes or ConcurrentKeyValueStore.UNBOUNDED.
+   */
+  public ConcurrentIdStore(long maxBytes) {
+    this(maxBytes, ConcurrentKeyValueStore.NO_EXPIRY);
+  }
+
+  /**
+   * Instantiates a new store that evicts whole keys once its entries use
+   * more than max bytes, and forgets a key ttl milliseconds after it was
+   * created.
+   *
+   * @param maxBytes the max bytes or ConcurrentKeyValueStore.UNBOUNDED.
+   * @param ttl the time to live in milliseconds or
+   *          ConcurrentKeyValueStore.NO_EXPIRY.
+   */
+  public ConcurrentIdStore(long maxBytes, long ttl) {
+    // Expiry is checked here against the creation time of each key rather
+    // than by the underlying store
+    mEntries = new ConcurrentKeyValueStore<Integer, Entry>(
+        ConcurrentKeyValueStore.UNBOUNDED,
+        ConcurrentKeyValueStore.EvictionPolicy.LRU,
+        ConcurrentKeyValueStore.NO_EXPIRY, ENTRY_WEIGHER, maxBytes);
+    mTtl = ttl;
+  }
 
   /**
    * Put.
@@ -33,12 +121,50 @@ public class ConcurrentIdStore implements ConcurrentStore {
    * @param id the id
    * @param value the value
    */
-  public synchronized void put(int keyId, int id, boolean value) {
-    if (!map.containsKey(keyId)) {
-      map.put(keyId, new HashMap<Integer, Boolean>());
+  public void put(int keyId, int id, boolean value) {
+    Entry entry = getOrCreate(keyId);
+
+    entry.mLock.writeLock().lock();
+
+    try {
+      entry.mKnown.add(id);
+
+      if (value) {
+        entry.mAllowed.add(id);
+      } else {
+        entry.mAllowed.remove(id);
+      }
+    } finally {
+      entry.mLock.writeLock().unlock();
     }
 
-    map.get(keyId).put(id, value);
+    update(keyId, entry);
+  }
+
+  /**
+   * Store the values of many ids at once. All of the ids become known and
+   * those in allowed are given the value true.
+   *
+   * @param keyId the key id
+   * @param ids the ids
+   * @param allowed the ids whose value is true.
+   */
+  public void put(int keyId, IdBitmap ids, IdBitmap allowed) {
+    Entry entry = getOrCreate(keyId);
+
+    IdBitmap a = ids.and(allowed);
+
+    entry.mLock.writeLock().lock();
+
+    try {
+      // Combine whole bitmaps rather than inserting id by id
+      entry.mKnown = entry.mKnown.or(ids);
+      entry.mAllowed = entry.mAllowed.andNot(ids).or(a);
+    } finally {
+      entry.mLock.writeLock().unlock();
+    }
+
+    update(keyId, entry);
   }
 
   /**
@@ -48,12 +174,20 @@ public class ConcurrentIdStore implements ConcurrentStore {
    * @param id the id
    * @return true, if successful
    */
-  public synchronized boolean contains(int keyId, int id) {
-    if (!map.containsKey(keyId)) {
+  public boolean contains(int keyId, int id) {
+    Entry entry = getEntry(keyId);
+
+    if (entry == null) {
       return false;
     }
 
-    return map.get(keyId).containsKey(id);
+    entry.mLock.readLock().lock();
+
+    try {
+      return entry.mKnown.contains(id);
+    } finally {
+      entry.mLock.readLock().unlock();
+    }
   }
 
   /**
@@ -63,12 +197,126 @@ public class ConcurrentIdStore implements ConcurrentStore {
    * @param id the id
    * @return true, if successful
    */
-  public synchronized boolean get(int keyId, int id) {
-    if (!map.containsKey(keyId)) {
+  public boolean get(int keyId, int id) {
+    Entry entry = getEntry(keyId);
+
+    if (entry == null) {
       return false;
     }
 
-    return map.get(keyId).get(id);
+    entry.mLock.readLock().lock();
+
+    try {
+      return entry.mAllowed.contains(id);
+    } finally {
+      entry.mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns all of the allowed ids of a key.
+   *
+   * @param keyId the key id
+   * @return a copy of the allowed ids.
+   */
+  public IdBitmap getAllowed(int keyId) {
+    Entry entry = getEntry(keyId);
+
+    if (entry == null) {
+      return new IdBitmap();
+    }
+
+    entry.mLock.readLock().lock();
+
+    try {
+      return entry.mAllowed.copy();
+    } finally {
+      entry.mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the ids in a set that are allowed for a key.
+   *
+   * @param keyId the key id
+   * @param ids the ids
+   * @return the id bitmap
+   */
+  public IdBitmap intersectAllowed(int keyId, IdBitmap ids) {
+    Entry entry = getEntry(keyId);
+
+    if (entry == null) {
+      return new IdBitmap();
+    }
+
+    entry.mLock.readLock().lock();
+
+    try {
+      return ids.and(entry.mAllowed);
+    } finally {
+      entry.mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the ids in a set whose value is not yet known for a key, i.e.
+   * the ids that must be looked up before the set can be resolved from the
+   * store.
+   *
+   * @param keyId the key id
+   * @param ids the ids
+   * @return the id bitmap
+   */
+  public IdBitmap getUnknown(int keyId, IdBitmap ids) {
+    Entry entry = getEntry(keyId);
+
+    if (entry == null) {
+      return ids.copy();
+    }
+
+    entry.mLock.readLock().lock();
+
+    try {
+      return ids.andNot(entry.mKnown);
+    } finally {
+      entry.mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Remove all of the ids of a key.
+   *
+   * @param keyId the key id
+   */
+  public void remove(int keyId) {
+    mEntries.remove(keyId);
+  }
+
+  /**
+   * Returns the number of keys in the store.
+   *
+   * @return the int
+   */
+  public int size() {
+    return mEntries.size();
+  }
+
+  /**
+   * Returns the approximate memory used by the store.
+   *
+   * @return the size in bytes.
+   */
+  public long sizeInBytes() {
+    return mEntries.getWeight();
+  }
+
+  /**
+   * Gets the max bytes.
+   *
+   * @return the max bytes or ConcurrentKeyValueStore.UNBOUNDED.
+   */
+  public long getMaxBytes() {
+    return mEntries.getMaxWeight();
   }
 
   /*
@@ -77,7 +325,66 @@ public class ConcurrentIdStore implements ConcurrentStore {
    * @see edu.columbia.rdf.edb.http.ConcurrentStore#clear()
    */
   @Override
-  public synchronized void clear() {
-    map.clear();
+  public void clear() {
+    mEntries.clear();
+  }
+
+  /**
+   * Gets the entry of a key, creating it if necessary.
+   *
+   * @param keyId the key id
+   * @return the entry
+   */
+  private Entry getOrCreate(int keyId) {
+    Entry entry = getEntry(keyId);
+
+    if (entry == null) {
+      synchronized (mEntries) {
+        entry = getEntry(keyId);
+
+        if (entry == null) {
+          entry = new Entry();
+          mEntries.put(keyId, entry);
+        }
+      }
+    }
+
+    return entry;
+  }
+
+  /**
+   * Gets the entry of a key, removing it if it has expired.
+   *
+   * @param keyId the key id
+   * @return the entry or null if the key has no entry.
+   */
+  private Entry getEntry(int keyId) {
+    Entry entry = mEntries.get(keyId);
+
+    if (entry != null && mTtl != ConcurrentKeyValueStore.NO_EXPIRY
+        && System.currentTimeMillis() - entry.mCreated >= mTtl) {
+      synchronized (mEntries) {
+        // Do not remove an entry another thread has just created
+        if (mEntries.get(keyId) == entry) {
+          mEntries.remove(keyId);
+        }
+      }
+
+      entry = null;
+    }
+
+    return entry;
+  }
+
+  /**
+   * Remeasure an entry after it has been modified so that the store evicts
+   * keys if it has grown too large. An entry that was evicted, expired or
+   * cleared while it was being modified is not stored again.
+   *
+   * @param keyId the key id
+   * @param entry the entry
+   */
+  private void update(int keyId, Entry entry) {
+    mEntries.reweigh(keyId, entry);
   }
 }
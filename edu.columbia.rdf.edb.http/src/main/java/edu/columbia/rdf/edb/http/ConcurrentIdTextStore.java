@@ -21,5 +21,20 @@ package edu.columbia.rdf.edb.http;
  * @author Antony Holmes
  */
 public class ConcurrentIdTextStore extends ConcurrentIdValueStore<String> {
-  // do nothing
+
+  /**
+   * Instantiates a new unbounded store.
+   */
+  public ConcurrentIdTextStore() {
+    // do nothing
+  }
+
+  /**
+   * Instantiates a new store holding at most max size entries.
+   *
+   * @param maxSize the max size
+   */
+  public ConcurrentIdTextStore(int maxSize) {
+    super(maxSize);
+  }
 }
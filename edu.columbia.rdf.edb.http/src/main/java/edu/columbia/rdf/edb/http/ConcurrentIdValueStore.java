@@ -4,9 +4,9 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -15,13 +15,407 @@
  */
 package edu.columbia.rdf.edb.http;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
- * Stores ids and their associated string value.
+ * Maps int ids (such as sample or experiment ids) to objects without boxing
+ * the keys. Entries are stored in an open addressing table using linear
+ * probing so each entry costs an int and a small immutable entry rather than
+ * an Integer and a map node.
+ *
+ * Reads are lock free and writes are serialized. A reader that races with a
+ * writer may miss an entry that is being added, which is harmless for a
+ * cache. The store can optionally be bounded, in which case entries are
+ * evicted using the clock (second chance) algorithm, an approximation of
+ * least recently used.
+ *
+ * Ids must be non-negative; negative ids are never stored.
  *
- * @author Antony Holmes
  * @param <T> the generic type
  */
-public class ConcurrentIdValueStore<T>
-    extends ConcurrentKeyValueStore<Integer, T> {
-  // do nothing
+public class ConcurrentIdValueStore<T> implements ConcurrentStore {
+
+  /** Marks a slot that has never been used. */
+  private static final int EMPTY = -1;
+
+  /** Marks a slot whose entry has been removed. */
+  private static final int DELETED = -2;
+
+  /** The Constant DEFAULT_CAPACITY. */
+  private static final int DEFAULT_CAPACITY = 16;
+
+  /** The maximum fraction of slots that can be used before resizing. */
+  private static final double LOAD_FACTOR = 0.6;
+
+  /**
+   * An id and its value. Slots hold the pair as one object so that a reader
+   * can check that the value it reads belongs to the id it looked up, even
+   * if the slot has since been reused.
+   *
+   * @param <T> the generic type
+   */
+  private static class Entry<T> {
+
+    /** The m id. */
+    private final int mId;
+
+    /** The m value. */
+    private final T mValue;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param id the id
+     * @param value the value
+     */
+    public Entry(int id, T value) {
+      mId = id;
+      mValue = value;
+    }
+  }
+
+  /**
+   * An immutable sized table. Slots are updated in place but the arrays are
+   * only replaced as a whole when the table is resized.
+   *
+   * @param <T> the generic type
+   */
+  private static class Table<T> {
+
+    /** The m keys. */
+    private final int[] mKeys;
+
+    /** The m values. */
+    private final AtomicReferenceArray<Entry<T>> mValues;
+
+    /** Clock reference bits, only allocated for bounded stores. */
+    private final byte[] mUsed;
+
+    /** The m mask. */
+    private final int mMask;
+
+    /**
+     * Instantiates a new table.
+     *
+     * @param capacity the capacity, must be a power of 2.
+     * @param bounded the bounded
+     */
+    public Table(int capacity, boolean bounded) {
+      mKeys = new int[capacity];
+      Arrays.fill(mKeys, EMPTY);
+      mValues = new AtomicReferenceArray<Entry<T>>(capacity);
+      mUsed = bounded ? new byte[capacity] : null;
+      mMask = capacity - 1;
+    }
+
+    /**
+     * Returns the slot of an id or -1 if it is not in the table.
+     *
+     * @param id the id
+     * @return the int
+     */
+    public int find(int id) {
+      int i = hash(id) & mMask;
+
+      while (true) {
+        int k = mKeys[i];
+
+        if (k == id) {
+          return i;
+        }
+
+        if (k == EMPTY) {
+          return -1;
+        }
+
+        i = (i + 1) & mMask;
+      }
+    }
+
+    /**
+     * Capacity.
+     *
+     * @return the int
+     */
+    public int capacity() {
+      return mKeys.length;
+    }
+  }
+
+  /** The m table. */
+  private volatile Table<T> mTable;
+
+  /** The number of live entries. */
+  private int mSize = 0;
+
+  /** The number of live and deleted slots. */
+  private int mFilled = 0;
+
+  /** The clock hand. */
+  private int mHand = 0;
+
+  /** The m max size. */
+  private final int mMaxSize;
+
+  /**
+   * Instantiates a new unbounded store.
+   */
+  public ConcurrentIdValueStore() {
+    this(ConcurrentKeyValueStore.UNBOUNDED);
+  }
+
+  /**
+   * Instantiates a new store that evicts entries once it contains more than
+   * max size entries.
+   *
+   * @param maxSize the max size or ConcurrentKeyValueStore.UNBOUNDED.
+   */
+  public ConcurrentIdValueStore(int maxSize) {
+    mMaxSize = maxSize;
+    mTable = new Table<T>(DEFAULT_CAPACITY, isBounded());
+  }
+
+  /**
+   * Put.
+   *
+   * @param id the id
+   * @param value the value
+   */
+  public synchronized void put(int id, T value) {
+    if (id < 0 || value == null) {
+      return;
+    }
+
+    Table<T> table = mTable;
+
+    int i = table.find(id);
+
+    if (i != -1) {
+      table.mValues.set(i, new Entry<T>(id, value));
+      return;
+    }
+
+    if (isBounded() && mSize >= mMaxSize) {
+      evict(table);
+    }
+
+    if (mFilled + 1 > table.capacity() * LOAD_FACTOR) {
+      table = resize(table, mSize + 1);
+    }
+
+    i = hash(id) & table.mMask;
+
+    while (table.mKeys[i] != EMPTY && table.mKeys[i] != DELETED) {
+      i = (i + 1) & table.mMask;
+    }
+
+    if (table.mKeys[i] == EMPTY) {
+      ++mFilled;
+    }
+
+    // Write the value before the key. A reader that finds the key checks
+    // the id of the entry, so it never sees the value of another id that
+    // previously used the slot.
+    table.mValues.set(i, new Entry<T>(id, value));
+    table.mKeys[i] = id;
+
+    ++mSize;
+  }
+
+  /**
+   * Contains.
+   *
+   * @param id the id
+   * @return true, if successful
+   */
+  public boolean contains(int id) {
+    return get(id) != null;
+  }
+
+  /**
+   * Gets the.
+   *
+   * @param id the id
+   * @return the t
+   */
+  public T get(int id) {
+    if (id < 0) {
+      return null;
+    }
+
+    Table<T> table = mTable;
+
+    int i = table.find(id);
+
+    if (i == -1) {
+      return null;
+    }
+
+    Entry<T> entry = table.mValues.get(i);
+
+    // The slot may have been deleted and reused since it was found
+    if (entry == null || entry.mId != id) {
+      return null;
+    }
+
+    if (table.mUsed != null) {
+      table.mUsed[i] = 1;
+    }
+
+    return entry.mValue;
+  }
+
+  /**
+   * Remove an id from the store.
+   *
+   * @param id the id
+   */
+  public synchronized void remove(int id) {
+    if (id < 0) {
+      return;
+    }
+
+    Table<T> table = mTable;
+
+    int i = table.find(id);
+
+    if (i != -1) {
+      delete(table, i);
+    }
+  }
+
+  /**
+   * Returns the number of entries in the store.
+   *
+   * @return the int
+   */
+  public synchronized int size() {
+    return mSize;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.http.ConcurrentStore#clear()
+   */
+  @Override
+  public synchronized void clear() {
+    mTable = new Table<T>(DEFAULT_CAPACITY, isBounded());
+    mSize = 0;
+    mFilled = 0;
+    mHand = 0;
+  }
+
+  /**
+   * Checks if is bounded.
+   *
+   * @return true, if is bounded
+   */
+  private boolean isBounded() {
+    return mMaxSize != ConcurrentKeyValueStore.UNBOUNDED;
+  }
+
+  /**
+   * Delete the entry in a slot.
+   *
+   * @param table the table
+   * @param i the i
+   */
+  private void delete(Table<T> table, int i) {
+    table.mValues.set(i, null);
+    table.mKeys[i] = DELETED;
+
+    --mSize;
+  }
+
+  /**
+   * Evict one entry using the clock algorithm. Entries that have been read
+   * since the hand last passed them are given a second chance.
+   *
+   * @param table the table
+   */
+  private void evict(Table<T> table) {
+    int n = table.capacity();
+
+    // Two sweeps are enough to find an entry since the first sweep clears
+    // every reference bit.
+    for (int c = 0; c < 2 * n; ++c) {
+      int i = mHand;
+
+      mHand = (mHand + 1) & table.mMask;
+
+      if (table.mKeys[i] < 0) {
+        continue;
+      }
+
+      if (table.mUsed[i] == 1) {
+        table.mUsed[i] = 0;
+      } else {
+        delete(table, i);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Copy the live entries into a new table large enough to hold size
+   * entries and publish it.
+   *
+   * @param table the table
+   * @param size the size
+   * @return the new table
+   */
+  private Table<T> resize(Table<T> table, int size) {
+    int capacity = DEFAULT_CAPACITY;
+
+    while (size > capacity * LOAD_FACTOR / 2) {
+      capacity <<= 1;
+    }
+
+    Table<T> ret = new Table<T>(capacity, isBounded());
+
+    for (int i = 0; i < table.capacity(); ++i) {
+      int id = table.mKeys[i];
+
+      if (id < 0) {
+        continue;
+      }
+
+      Entry<T> entry = table.mValues.get(i);
+
+      if (entry == null) {
+        continue;
+      }
+
+      int j = hash(id) & ret.mMask;
+
+      while (ret.mKeys[j] != EMPTY) {
+        j = (j + 1) & ret.mMask;
+      }
+
+      ret.mKeys[j] = id;
+      ret.mValues.set(j, entry);
+    }
+
+    mFilled = mSize;
+    mHand = 0;
+
+    mTable = ret;
+
+    return ret;
+  }
+
+  /**
+   * Spread the bits of an id so that sequential ids do not form long
+   * probe runs.
+   *
+   * @param id the id
+   * @return the int
+   */
+  private static int hash(int id) {
+    int h = id * 0x9E3779B9;
+
+    return h ^ (h >>> 16);
+  }
 }
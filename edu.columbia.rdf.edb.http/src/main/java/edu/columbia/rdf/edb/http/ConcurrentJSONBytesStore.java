@@ -0,0 +1,343 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jebtk.core.json.JsonArray;
+import org.jebtk.core.json.JsonObject;
+
+/**
+ * Stores JSON as pre-serialized UTF-8 bytes rather than as object trees so
+ * that cached responses do not need to be serialized again for each request
+ * and take up far less memory. When compression is enabled, entries larger
+ * than a small threshold are stored gzipped and can be sent as is to
+ * clients that accept gzip.
+ *
+ * @author Antony Holmes
+ * @see ConcurrentJSONStore
+ */
+public class ConcurrentJSONBytesStore extends ConcurrentIdValueStore<byte[]> {
+
+  /** The Constant CONTENT_TYPE. */
+  private static final String CONTENT_TYPE = "application/json";
+
+  /** Entries smaller than this are not worth compressing. */
+  private static final int MIN_COMPRESS_SIZE = 256;
+
+  /** The m compress. */
+  private final boolean mCompress;
+
+  /**
+   * Instantiates a new unbounded, uncompressed store.
+   */
+  public ConcurrentJSONBytesStore() {
+    this(false);
+  }
+
+  /**
+   * Instantiates a new unbounded store.
+   *
+   * @param compress whether to gzip entries.
+   */
+  public ConcurrentJSONBytesStore(boolean compress) {
+    this(ConcurrentKeyValueStore.UNBOUNDED, compress);
+  }
+
+  /**
+   * Instantiates a new store holding at most max size entries.
+   *
+   * @param maxSize the max size
+   * @param compress whether to gzip entries.
+   */
+  public ConcurrentJSONBytesStore(int maxSize, boolean compress) {
+    super(maxSize);
+
+    mCompress = compress;
+  }
+
+  /**
+   * Checks if entries are compressed.
+   *
+   * @return true, if is compressed
+   */
+  public boolean isCompressed() {
+    return mCompress;
+  }
+
+  /**
+   * Serialize and store a JSON object.
+   *
+   * @param id the id
+   * @param json the json
+   */
+  public void put(int id, JsonObject json) {
+    if (json == null) {
+      return;
+    }
+
+    put(id, json.toString());
+  }
+
+  /**
+   * Serialize and store a JSON array.
+   *
+   * @param id the id
+   * @param json the json
+   */
+  public void put(int id, JsonArray json) {
+    if (json == null) {
+      return;
+    }
+
+    put(id, json.toString());
+  }
+
+  /**
+   * Store a serialized JSON string.
+   *
+   * @param id the id
+   * @param json the json
+   */
+  public void put(int id, String json) {
+    if (json == null) {
+      return;
+    }
+
+    byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+
+    if (mCompress && bytes.length >= MIN_COMPRESS_SIZE) {
+      bytes = compress(bytes);
+    }
+
+    put(id, bytes);
+  }
+
+  /**
+   * Gets the JSON string of an entry.
+   *
+   * @param id the id
+   * @return the json or null if there is no entry.
+   */
+  public String getJson(int id) {
+    byte[] bytes = get(id);
+
+    if (bytes == null) {
+      return null;
+    }
+
+    if (isGzip(bytes)) {
+      bytes = decompress(bytes);
+    }
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write an entry as the body of a response. Compressed entries are sent
+   * as is to clients that accept gzip and are decompressed on the fly for
+   * those that do not.
+   *
+   * @param id the id
+   * @param request the request
+   * @param response the response
+   * @return true if the entry exists and was written, false otherwise in
+   *         which case the response is untouched.
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  public boolean write(int id,
+      HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    byte[] bytes = get(id);
+
+    if (bytes == null) {
+      return false;
+    }
+
+    response.setContentType(CONTENT_TYPE);
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+    OutputStream out = response.getOutputStream();
+
+    if (isGzip(bytes)) {
+      response.setHeader("Vary", "Accept-Encoding");
+
+      if (acceptsGzip(request.getHeader("Accept-Encoding"))) {
+        response.setHeader("Content-Encoding", "gzip");
+        response.setContentLength(bytes.length);
+        out.write(bytes);
+      } else {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+
+        try {
+          copy(in, out);
+        } finally {
+          in.close();
+        }
+      }
+    } else {
+      response.setContentLength(bytes.length);
+      out.write(bytes);
+    }
+
+    out.flush();
+
+    return true;
+  }
+
+  /**
+   * Returns true if an Accept-Encoding header allows gzip, i.e. it lists
+   * gzip, or else *, with a q-value above zero. A q-value that cannot be
+   * parsed counts as zero so that the response is sent uncompressed.
+   *
+   * @param accept the value of the Accept-Encoding header or null.
+   * @return true, if gzip is acceptable
+   */
+  private static boolean acceptsGzip(String accept) {
+    if (accept == null) {
+      return false;
+    }
+
+    double gzip = -1;
+    double any = -1;
+
+    for (String coding : accept.split(",")) {
+      String[] params = coding.split(";");
+
+      String name = params[0].trim().toLowerCase();
+
+      if (!name.equals("gzip") && !name.equals("x-gzip")
+          && !name.equals("*")) {
+        continue;
+      }
+
+      double q = 1;
+
+      for (int i = 1; i < params.length; ++i) {
+        String param = params[i];
+
+        int eq = param.indexOf('=');
+
+        if (eq != -1 && param.substring(0, eq).trim().equalsIgnoreCase("q")) {
+          try {
+            q = Double.parseDouble(param.substring(eq + 1).trim());
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+
+      if (name.equals("*")) {
+        any = Math.max(any, q);
+      } else {
+        gzip = Math.max(gzip, q);
+      }
+    }
+
+    // An explicit gzip entry takes precedence over *
+    return (gzip >= 0 ? gzip : any) > 0;
+  }
+
+  /**
+   * Returns true if bytes are gzipped. JSON text can never start with the
+   * gzip magic number so entries can be distinguished by their first bytes.
+   *
+   * @param bytes the bytes
+   * @return true, if is gzip
+   */
+  private static boolean isGzip(byte[] bytes) {
+    return bytes.length > 1 && bytes[0] == (byte) 0x1f
+        && bytes[1] == (byte) 0x8b;
+  }
+
+  /**
+   * Gzip bytes.
+   *
+   * @param bytes the bytes
+   * @return the compressed bytes
+   */
+  private static byte[] compress(byte[] bytes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+
+    try {
+      GZIPOutputStream gzip = new GZIPOutputStream(out);
+
+      try {
+        gzip.write(bytes);
+      } finally {
+        gzip.close();
+      }
+    } catch (IOException e) {
+      // Cannot happen writing to memory
+      throw new UncheckedIOException(e);
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Gunzip bytes.
+   *
+   * @param bytes the bytes
+   * @return the decompressed bytes
+   */
+  private static byte[] decompress(byte[] bytes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+
+    try {
+      InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+
+      try {
+        copy(in, out);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Copy a stream.
+   *
+   * @param in the in
+   * @param out the out
+   * @throws IOException Signals that an I/O exception has occurred.
+   */
+  private static void copy(InputStream in, OutputStream out)
+      throws IOException {
+    byte[] buffer = new byte[8192];
+
+    int n;
+
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+  }
+}
@@ -19,7 +19,24 @@ import org.jebtk.core.json.JsonObject;
 
 /**
  * The Class ConcurrentJSONStore.
+ *
+ * @see ConcurrentJSONBytesStore for storing pre-serialized JSON.
  */
 public class ConcurrentJSONStore extends ConcurrentIdValueStore<JsonObject> {
 
+  /**
+   * Instantiates a new unbounded store.
+   */
+  public ConcurrentJSONStore() {
+    // do nothing
+  }
+
+  /**
+   * Instantiates a new store holding at most max size entries.
+   *
+   * @param maxSize the max size
+   */
+  public ConcurrentJSONStore(int maxSize) {
+    super(maxSize);
+  }
 }
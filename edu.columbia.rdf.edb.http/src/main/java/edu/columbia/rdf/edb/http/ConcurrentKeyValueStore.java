@@ -15,19 +15,262 @@
  */
 package edu.columbia.rdf.edb.http;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * The Class ConcurrentKeyValueStore.
+ * Non-blocking key value store. Reads and writes go straight to a
+ * ConcurrentHashMap so request threads do not queue behind a single monitor.
+ * The store can optionally be bounded, in which case the least recently
+ * (LRU) or least frequently (LFU) used entries are evicted in batches once
+ * the store grows beyond its maximum size. Alternatively, or as well, the
+ * store can be bounded by the total weight of its values as measured by a
+ * weigher, for example their size in bytes, so that a few large values
+ * cannot exhaust memory. Entries can also be given a time to live after
+ * which they are treated as missing.
  *
  * @param <T> the generic type
  * @param <V> the value type
  */
 public class ConcurrentKeyValueStore<T, V> implements ConcurrentStore {
 
+  /**
+   * How entries are chosen for eviction when the store is full.
+   */
+  public enum EvictionPolicy {
+    /** Evict the entries that have not been read for the longest time. */
+    LRU,
+
+    /** Evict the entries that have been read the fewest times. */
+    LFU
+  }
+
+  /** Indicates the store has no maximum size. */
+  public static final int UNBOUNDED = -1;
+
+  /** Indicates entries never expire. */
+  public static final long NO_EXPIRY = -1;
+
+  /**
+   * Measures the weight of values.
+   *
+   * @param <V> the value type
+   */
+  public interface Weigher<V> {
+
+    /**
+     * Returns the weight of a value.
+     *
+     * @param value the value
+     * @return the weight
+     */
+    public long weigh(V value);
+  }
+
+  /** The fraction of the maximum size to evict in each eviction pass. */
+  private static final double EVICTION_FRACTION = 0.1;
+
+  /**
+   * How many writes there are between sweeps for expired entries, so that
+   * stores that never fill up do not hold on to expired entries.
+   */
+  private static final int EXPIRY_SWEEP_WRITES = 1024;
+
+  /**
+   * Holds a value along with the bookkeeping needed to decide which entries
+   * to evict. The counters are updated without locking so they are only
+   * approximate under contention, which is sufficient for eviction.
+   *
+   * @param <V> the value type
+   */
+  private static class Entry<V> {
+
+    /** The m value. */
+    private final V mValue;
+
+    /** When the entry expires or NO_EXPIRY. */
+    private final long mExpires;
+
+    /** The time of the last access from System.nanoTime(). */
+    private volatile long mAccessed;
+
+    /** The number of accesses. */
+    private volatile int mHits;
+
+    /** The m weight. */
+    private final long mWeight;
+
+    /**
+     * Instantiates a new entry.
+     *
+     * @param value the value
+     * @param expires the expiry time in milliseconds or NO_EXPIRY.
+     * @param weight the weight
+     */
+    public Entry(V value, long expires, long weight) {
+      mValue = value;
+      mAccessed = System.nanoTime();
+      mExpires = expires;
+      mWeight = weight;
+    }
+
+    /**
+     * Checks if the entry has expired.
+     *
+     * @param now the current time in milliseconds.
+     * @return true, if is expired
+     */
+    public boolean isExpired(long now) {
+      return mExpires != NO_EXPIRY && now >= mExpires;
+    }
+
+    /**
+     * Record an access of the entry. Only the entry itself is written, so
+     * readers of different keys do not contend on a shared counter.
+     */
+    public void touch() {
+      mAccessed = System.nanoTime();
+      ++mHits;
+    }
+  }
+
+  /**
+   * An entry considered for eviction with its usage fixed at the time it was
+   * copied.
+   *
+   * @param <T> the generic type
+   * @param <V> the value type
+   */
+  private static class Candidate<T, V> {
+
+    /** The m key. */
+    private final T mKey;
+
+    /** The m entry. */
+    private final Entry<V> mEntry;
+
+    /** The m accessed. */
+    private final long mAccessed;
+
+    /** The m hits. */
+    private final int mHits;
+
+    /**
+     * Instantiates a new candidate.
+     *
+     * @param key the key
+     * @param entry the entry
+     */
+    public Candidate(T key, Entry<V> entry) {
+      mKey = key;
+      mEntry = entry;
+      mAccessed = entry.mAccessed;
+      mHits = entry.mHits;
+    }
+  }
+
   /** The map. */
-  private Map<T, V> map = new HashMap<T, V>();
+  private final Map<T, Entry<V>> mMap = new ConcurrentHashMap<T, Entry<V>>();
+
+  /** The number of writes, used to schedule sweeps for expired entries. */
+  private final AtomicInteger mWrites = new AtomicInteger();
+
+  /** Ensures only one thread evicts at a time without blocking others. */
+  private final AtomicBoolean mEvicting = new AtomicBoolean();
+
+  /** The m max size. */
+  private final int mMaxSize;
+
+  /** The m policy. */
+  private final EvictionPolicy mPolicy;
+
+  /** The time to live in milliseconds. */
+  private final long mTtl;
+
+  /** The m weigher or null if entries are not weighed. */
+  private final Weigher<V> mWeigher;
+
+  /** The m max weight. */
+  private final long mMaxWeight;
+
+  /** The total weight of the entries. */
+  private final AtomicLong mWeight = new AtomicLong();
+
+  /**
+   * Instantiates a new unbounded store.
+   */
+  public ConcurrentKeyValueStore() {
+    this(UNBOUNDED);
+  }
+
+  /**
+   * Instantiates a new store that evicts least recently used entries once it
+   * contains more than max size entries.
+   *
+   * @param maxSize the max size or UNBOUNDED.
+   */
+  public ConcurrentKeyValueStore(int maxSize) {
+    this(maxSize, EvictionPolicy.LRU);
+  }
+
+  /**
+   * Instantiates a new concurrent key value store.
+   *
+   * @param maxSize the max size or UNBOUNDED.
+   * @param policy the eviction policy.
+   */
+  public ConcurrentKeyValueStore(int maxSize, EvictionPolicy policy) {
+    this(maxSize, policy, NO_EXPIRY);
+  }
+
+  /**
+   * Instantiates a new concurrent key value store whose entries expire a
+   * fixed time after they are added.
+   *
+   * @param maxSize the max size or UNBOUNDED.
+   * @param policy the eviction policy.
+   * @param ttl the time to live of each entry in milliseconds or NO_EXPIRY.
+   */
+  public ConcurrentKeyValueStore(int maxSize, EvictionPolicy policy,
+      long ttl) {
+    this(maxSize, policy, ttl, null, UNBOUNDED);
+  }
+
+  /**
+   * Instantiates a new store that evicts least recently used entries once
+   * the total weight of its values exceeds max weight.
+   *
+   * @param weigher the weigher
+   * @param maxWeight the max weight
+   */
+  public ConcurrentKeyValueStore(Weigher<V> weigher, long maxWeight) {
+    this(UNBOUNDED, EvictionPolicy.LRU, NO_EXPIRY, weigher, maxWeight);
+  }
+
+  /**
+   * Instantiates a new concurrent key value store.
+   *
+   * @param maxSize the max size or UNBOUNDED.
+   * @param policy the eviction policy.
+   * @param ttl the time to live of each entry in milliseconds or NO_EXPIRY.
+   * @param weigher the weigher or null if entries are not weighed.
+   * @param maxWeight the max weight or UNBOUNDED.
+   */
+  public ConcurrentKeyValueStore(int maxSize, EvictionPolicy policy,
+      long ttl, Weigher<V> weigher, long maxWeight) {
+    mMaxSize = maxSize;
+    mPolicy = policy;
+    mTtl = ttl;
+    mWeigher = weigher;
+    mMaxWeight = weigher != null ? maxWeight : UNBOUNDED;
+  }
 
   /**
    * Put.
@@ -35,12 +278,69 @@ public class ConcurrentKeyValueStore<T, V> implements ConcurrentStore {
    * @param id the id
    * @param value the value
    */
-  public synchronized void put(T id, V value) {
+  public void put(T id, V value) {
     if (value == null) {
       return;
     }
 
-    map.put(id, value);
+    long weight = mWeigher != null ? mWeigher.weigh(value) : 0;
+
+    if (mMaxWeight != UNBOUNDED && weight > mMaxWeight) {
+      // Storing the value would evict everything else
+      remove(id);
+      return;
+    }
+
+    long expires = mTtl != NO_EXPIRY ? System.currentTimeMillis() + mTtl
+        : NO_EXPIRY;
+
+    Entry<V> previous = mMap.put(id,
+        new Entry<V>(value, expires, weight));
+
+    mWeight.addAndGet(previous != null ? weight - previous.mWeight : weight);
+
+    if (isFull() || isSweepDue()) {
+      evict();
+    }
+  }
+
+  /**
+   * Remeasure the weight of a value that has been modified in place. Nothing
+   * is stored if the key has since been removed, evicted or mapped to another
+   * value, so an update cannot bring back an entry the store has dropped.
+   * The entry keeps its original expiry time.
+   *
+   * @param id the id
+   * @param value the value
+   * @return true if the value was still mapped to the key.
+   */
+  public boolean reweigh(T id, V value) {
+    long weight = mWeigher != null ? mWeigher.weigh(value) : 0;
+
+    while (true) {
+      Entry<V> previous = mMap.get(id);
+
+      if (previous == null || previous.mValue != value) {
+        return false;
+      }
+
+      if (mMaxWeight != UNBOUNDED && weight > mMaxWeight) {
+        remove(id, previous);
+        return false;
+      }
+
+      Entry<V> entry = new Entry<V>(value, previous.mExpires, weight);
+
+      if (mMap.replace(id, previous, entry)) {
+        mWeight.addAndGet(weight - previous.mWeight);
+
+        if (isFull()) {
+          evict();
+        }
+
+        return true;
+      }
+    }
   }
 
   /**
@@ -49,8 +349,12 @@ public class ConcurrentKeyValueStore<T, V> implements ConcurrentStore {
    * @param id the id
    * @return true, if successful
    */
-  public synchronized boolean contains(T id) {
-    return map.containsKey(id);
+  public boolean contains(T id) {
+    if (mTtl == NO_EXPIRY) {
+      return mMap.containsKey(id);
+    }
+
+    return get(id) != null;
   }
 
   /**
@@ -59,17 +363,224 @@ public class ConcurrentKeyValueStore<T, V> implements ConcurrentStore {
    * @param id the id
    * @return the v
    */
-  public synchronized V get(T id) {
-    return map.get(id);
+  public V get(T id) {
+    Entry<V> entry = mMap.get(id);
+
+    if (entry == null) {
+      return null;
+    }
+
+    if (mTtl != NO_EXPIRY && entry.isExpired(System.currentTimeMillis())) {
+      remove(id, entry);
+      return null;
+    }
+
+    if (mMaxSize != UNBOUNDED || mMaxWeight != UNBOUNDED) {
+      entry.touch();
+    }
+
+    return entry.mValue;
+  }
+
+  /**
+   * Remove a key from the store.
+   *
+   * @param id the id
+   */
+  public void remove(T id) {
+    Entry<V> entry = mMap.remove(id);
+
+    if (entry != null) {
+      mWeight.addAndGet(-entry.mWeight);
+    }
+  }
+
+  /**
+   * Remove an entry only if it is still mapped to its key.
+   *
+   * @param id the id
+   * @param entry the entry
+   */
+  private void remove(T id, Entry<V> entry) {
+    if (mMap.remove(id, entry)) {
+      mWeight.addAndGet(-entry.mWeight);
+    }
+  }
+
+  /**
+   * Returns the number of entries in the store.
+   *
+   * @return the size
+   */
+  public int size() {
+    return mMap.size();
+  }
+
+  /**
+   * Gets the max size.
+   *
+   * @return the max size or UNBOUNDED.
+   */
+  public int getMaxSize() {
+    return mMaxSize;
+  }
+
+  /**
+   * Returns the total weight of the values in the store.
+   *
+   * @return the weight or 0 if entries are not weighed.
+   */
+  public long getWeight() {
+    return mWeight.get();
+  }
+
+  /**
+   * Gets the max weight.
+   *
+   * @return the max weight or UNBOUNDED.
+   */
+  public long getMaxWeight() {
+    return mMaxWeight;
   }
 
   /*
    * (non-Javadoc)
-   * 
+   *
    * @see edu.columbia.rdf.edb.http.ConcurrentStore#clear()
    */
   @Override
-  public synchronized void clear() {
-    map.clear();
+  public void clear() {
+    for (Map.Entry<T, Entry<V>> e : mMap.entrySet()) {
+      remove(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * Returns true if the store has grown beyond its maximum size or weight.
+   *
+   * @return true, if is full
+   */
+  private boolean isFull() {
+    return (mMaxSize != UNBOUNDED && mMap.size() > mMaxSize)
+        || (mMaxWeight != UNBOUNDED && mWeight.get() > mMaxWeight);
+  }
+
+  /**
+   * Returns true every EXPIRY_SWEEP_WRITES writes if entries can expire.
+   *
+   * @return true, if a sweep is due
+   */
+  private boolean isSweepDue() {
+    return mTtl != NO_EXPIRY
+        && mWrites.incrementAndGet() % EXPIRY_SWEEP_WRITES == 0;
+  }
+
+  /**
+   * Evict expired entries and then, if the store is still too large, a batch
+   * of the least used entries. If another thread is already evicting, the
+   * call returns immediately rather than waiting.
+   */
+  private void evict() {
+    if (!mEvicting.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      if (mTtl != NO_EXPIRY) {
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<T, Entry<V>> e : mMap.entrySet()) {
+          if (e.getValue().isExpired(now)) {
+            remove(e.getKey(), e.getValue());
+          }
+        }
+      }
+
+      if (!isFull()) {
+        return;
+      }
+
+      // Evict a batch beyond the limits so that eviction does not run on
+      // every put
+      int maxSize = mMaxSize != UNBOUNDED
+          ? mMaxSize - Math.max(1, (int) (mMaxSize * EVICTION_FRACTION))
+          : Integer.MAX_VALUE;
+
+      long maxWeight = mMaxWeight != UNBOUNDED
+          ? mMaxWeight - (long) (mMaxWeight * EVICTION_FRACTION)
+          : Long.MAX_VALUE;
+
+      // Sort copies of the usage counters since readers keep updating
+      // them and a sort over changing keys can fail
+      List<Candidate<T, V>> candidates = new ArrayList<Candidate<T, V>>(
+          mMap.size());
+
+      for (Map.Entry<T, Entry<V>> e : mMap.entrySet()) {
+        candidates.add(new Candidate<T, V>(e.getKey(), e.getValue()));
+      }
+
+      Collections.sort(candidates, comparator(mPolicy));
+
+      for (Candidate<T, V> c : candidates) {
+        if (mMap.size() <= maxSize && mWeight.get() <= maxWeight) {
+          break;
+        }
+
+        // Only remove the entry if it has not been replaced in the meantime
+        remove(c.mKey, c.mEntry);
+      }
+    } finally {
+      mEvicting.set(false);
+    }
+  }
+
+  /**
+   * Returns a comparator that orders entries so that those that should be
+   * evicted first come first.
+   *
+   * @param <T> the generic type
+   * @param <V> the value type
+   * @param policy the policy
+   * @return the comparator
+   */
+  private static <T, V> Comparator<Candidate<T, V>> comparator(
+      EvictionPolicy policy) {
+    switch (policy) {
+    case LFU:
+      return new Comparator<Candidate<T, V>>() {
+        @Override
+        public int compare(Candidate<T, V> c1, Candidate<T, V> c2) {
+          int c = Integer.compare(c1.mHits, c2.mHits);
+
+          if (c != 0) {
+            return c;
+          }
+
+          return compareAccessed(c1, c2);
+        }
+      };
+    default:
+      return new Comparator<Candidate<T, V>>() {
+        @Override
+        public int compare(Candidate<T, V> c1, Candidate<T, V> c2) {
+          return compareAccessed(c1, c2);
+        }
+      };
+    }
+  }
+
+  /**
+   * Order candidates from the least to the most recently accessed. Times
+   * from System.nanoTime() must be compared by their difference.
+   *
+   * @param <T> the generic type
+   * @param <V> the value type
+   * @param c1 the c 1
+   * @param c2 the c 2
+   * @return the int
+   */
+  private static <T, V> int compareAccessed(Candidate<T, V> c1,
+      Candidate<T, V> c2) {
+    return Long.signum(c1.mAccessed - c2.mAccessed);
   }
 }
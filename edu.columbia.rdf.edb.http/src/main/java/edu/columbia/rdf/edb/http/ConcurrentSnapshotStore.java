@@ -0,0 +1,330 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * Base class of stores that hold an immutable snapshot bulk loaded from a
+ * query. The snapshot is replaced atomically, so reads never lock.
+ *
+ * ensureLoaded() only locks while the store is first loaded. Once a store
+ * has a snapshot, a reload because it has reached its maximum age or been
+ * invalidated is done by one thread while the others keep reading the old
+ * snapshot. clear() drops the snapshot so the next caller must wait for a
+ * reload.
+ *
+ * @author Antony Holmes
+ *
+ * @param <S> the snapshot type
+ */
+public abstract class ConcurrentSnapshotStore<S> implements ConcurrentStore {
+
+  /**
+   * A snapshot and when it was loaded.
+   *
+   * @param <S> the snapshot type
+   */
+  private static final class Loaded<S> {
+
+    /** The m snapshot. */
+    private final S mSnapshot;
+
+    /** The m loaded. */
+    private final long mLoaded;
+
+    /** Whether the snapshot must be reloaded regardless of its age. */
+    private final boolean mStale;
+
+    /**
+     * Instantiates a new loaded snapshot.
+     *
+     * @param snapshot the snapshot
+     * @param loaded the loaded
+     * @param stale the stale
+     */
+    public Loaded(S snapshot, long loaded, boolean stale) {
+      mSnapshot = snapshot;
+      mLoaded = loaded;
+      mStale = stale;
+    }
+  }
+
+  /** The current snapshot or null if the store has not been loaded. */
+  private volatile Loaded<S> mLoaded;
+
+  /** The m max age. */
+  private final long mMaxAge;
+
+  /** Set while a loaded store is being reloaded. */
+  private final AtomicBoolean mReloading = new AtomicBoolean();
+
+  /**
+   * Advanced by clear() and invalidate() so that a load that was already
+   * running is not mistaken for a fresh one.
+   */
+  private final AtomicInteger mGeneration = new AtomicInteger();
+
+  /**
+   * Instantiates a new store that is kept until it is cleared.
+   */
+  public ConcurrentSnapshotStore() {
+    this(ConcurrentKeyValueStore.NO_EXPIRY);
+  }
+
+  /**
+   * Instantiates a new store that is reloaded once it is older than a
+   * maximum age.
+   *
+   * @param maxAge the max age in milliseconds or
+   *          ConcurrentKeyValueStore.NO_EXPIRY.
+   */
+  public ConcurrentSnapshotStore(long maxAge) {
+    mMaxAge = maxAge;
+  }
+
+  /**
+   * Build a snapshot from a result set.
+   *
+   * @param rs the rs
+   * @return the snapshot
+   * @throws SQLException the SQL exception
+   */
+  protected abstract S read(ResultSet rs) throws SQLException;
+
+  /**
+   * Returns the current snapshot.
+   *
+   * @return the snapshot or null if the store has not been loaded.
+   */
+  protected S getSnapshot() {
+    Loaded<S> loaded = mLoaded;
+
+    return loaded != null ? loaded.mSnapshot : null;
+  }
+
+  /**
+   * Replace the snapshot without changing when the store was loaded, for
+   * example after adding a single mapping. Subclasses should synchronize on
+   * the store while building the new snapshot from the current one.
+   *
+   * @param snapshot the snapshot
+   */
+  protected void update(S snapshot) {
+    Loaded<S> loaded = mLoaded;
+
+    mLoaded = loaded != null
+        ? new Loaded<S>(snapshot, loaded.mLoaded, loaded.mStale)
+        : new Loaded<S>(snapshot, System.currentTimeMillis(), false);
+  }
+
+  /**
+   * Checks if the store has been loaded, has not been invalidated and has
+   * not reached its maximum age.
+   *
+   * @return true, if is loaded
+   */
+  public boolean isLoaded() {
+    return isCurrent(mLoaded);
+  }
+
+  /**
+   * Replace the contents of the store with a result set.
+   *
+   * @param rs the rs
+   * @return the new snapshot
+   * @throws SQLException the SQL exception
+   */
+  public S load(ResultSet rs) throws SQLException {
+    int generation = mGeneration.get();
+
+    return set(read(rs), generation);
+  }
+
+  /**
+   * Replace the contents of the store with the results of a query.
+   *
+   * @param connection the connection
+   * @param sql the sql
+   * @return the new snapshot
+   * @throws SQLException the SQL exception
+   */
+  public S load(Connection connection, String sql) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(sql);
+
+    try {
+      ResultSet rs = statement.executeQuery();
+
+      try {
+        return load(rs);
+      } finally {
+        rs.close();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Replace the contents of the store with the results of a query.
+   *
+   * @param connection the connection
+   * @param sql the sql
+   * @return the new snapshot
+   */
+  public S load(JdbcTemplate connection, String sql) {
+    int generation = mGeneration.get();
+
+    S snapshot = connection.query(sql, new ResultSetExtractor<S>() {
+      @Override
+      public S extractData(ResultSet rs)
+          throws SQLException, DataAccessException {
+        return read(rs);
+      }
+    });
+
+    return set(snapshot, generation);
+  }
+
+  /**
+   * Load the store from a query if it has not been loaded, has been
+   * invalidated or has expired.
+   *
+   * @param connection the connection
+   * @param sql the sql
+   * @return the snapshot to read, which is never null even if the store is
+   *         cleared concurrently.
+   * @throws SQLException the SQL exception
+   */
+  public S ensureLoaded(Connection connection, String sql)
+      throws SQLException {
+    Loaded<S> loaded = mLoaded;
+
+    if (loaded != null) {
+      // One thread reloads while the others keep reading the old snapshot
+      if (!isCurrent(loaded) && mReloading.compareAndSet(false, true)) {
+        try {
+          return load(connection, sql);
+        } finally {
+          mReloading.set(false);
+        }
+      }
+
+      return loaded.mSnapshot;
+    }
+
+    synchronized (this) {
+      loaded = mLoaded;
+
+      return loaded != null ? loaded.mSnapshot : load(connection, sql);
+    }
+  }
+
+  /**
+   * Load the store from a query if it has not been loaded, has been
+   * invalidated or has expired.
+   *
+   * @param connection the connection
+   * @param sql the sql
+   * @return the snapshot to read, which is never null even if the store is
+   *         cleared concurrently.
+   */
+  public S ensureLoaded(JdbcTemplate connection, String sql) {
+    Loaded<S> loaded = mLoaded;
+
+    if (loaded != null) {
+      // One thread reloads while the others keep reading the old snapshot
+      if (!isCurrent(loaded) && mReloading.compareAndSet(false, true)) {
+        try {
+          return load(connection, sql);
+        } finally {
+          mReloading.set(false);
+        }
+      }
+
+      return loaded.mSnapshot;
+    }
+
+    synchronized (this) {
+      loaded = mLoaded;
+
+      return loaded != null ? loaded.mSnapshot : load(connection, sql);
+    }
+  }
+
+  /**
+   * Mark the store to be reloaded by the next call to ensureLoaded() while
+   * readers keep using the current snapshot until then.
+   */
+  public void invalidate() {
+    mGeneration.incrementAndGet();
+
+    Loaded<S> loaded = mLoaded;
+
+    if (loaded != null) {
+      mLoaded = new Loaded<S>(loaded.mSnapshot, loaded.mLoaded, true);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.http.ConcurrentStore#clear()
+   */
+  @Override
+  public void clear() {
+    mGeneration.incrementAndGet();
+
+    mLoaded = null;
+  }
+
+  /**
+   * Checks if a snapshot can be used without reloading.
+   *
+   * @param loaded the loaded snapshot
+   * @return true, if is current
+   */
+  private boolean isCurrent(Loaded<S> loaded) {
+    return loaded != null && !loaded.mStale
+        && (mMaxAge == ConcurrentKeyValueStore.NO_EXPIRY
+            || System.currentTimeMillis() - loaded.mLoaded < mMaxAge);
+  }
+
+  /**
+   * Install a freshly read snapshot.
+   *
+   * @param snapshot the snapshot
+   * @param generation the generation when the read started.
+   * @return the snapshot
+   */
+  private S set(S snapshot, int generation) {
+    // If the store was cleared or invalidated during the read, the snapshot
+    // may predate the change so it is used but reloaded on next use
+    mLoaded = new Loaded<S>(snapshot, System.currentTimeMillis(),
+        generation != mGeneration.get());
+
+    return snapshot;
+  }
+}
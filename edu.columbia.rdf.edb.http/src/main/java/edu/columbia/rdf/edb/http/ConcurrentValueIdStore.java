@@ -4,9 +4,9 @@
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  *   http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -15,12 +15,561 @@
  */
 package edu.columbia.rdf.edb.http;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+
 /**
- * Stores ids and their associated string value.
+ * Dictionary of strings, such as keywords or tag names, and their ids that
+ * supports exact, prefix and reverse (id to string) lookups.
+ *
+ * Strings are stored sorted by their UTF-8 bytes in blocks of 16. Within a
+ * block each string only stores the bytes that differ from the previous
+ * string (front coding), which is compact for the long shared prefixes
+ * typical of keywords. Lookups binary search the first string of each block
+ * and then scan one block, so a prefix query returns a contiguous range of
+ * the dictionary rather than requiring a LIKE query.
+ *
+ * The dictionary is immutable and is rebuilt off to the side and swapped in
+ * atomically, so readers never lock.
  *
  * @author Antony Holmes
  */
 public class ConcurrentValueIdStore
-    extends ConcurrentKeyValueStore<String, Integer> {
-  // do nothing
+    extends ConcurrentSnapshotStore<ConcurrentValueIdStore.Dictionary> {
+
+  /** Returned when a string is not in the dictionary. */
+  public static final int NOT_FOUND = -1;
+
+  /** The number of strings in each front coded block. */
+  private static final int BLOCK_SIZE = 16;
+
+  /** The Constant EMPTY. */
+  private static final int[] EMPTY = new int[0];
+
+  /** Orders UTF-8 encoded strings by their unsigned bytes. */
+  private static final Comparator<byte[]> BYTES_COMPARATOR = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] b1, byte[] b2) {
+      return ConcurrentValueIdStore.compare(b1, b1.length, b2);
+    }
+  };
+
+  /**
+   * A string and its id.
+   */
+  private static final class Term {
+
+    /** The UTF-8 bytes of the string. */
+    private final byte[] mBytes;
+
+    /** The m id. */
+    private final int mId;
+
+    /**
+     * Instantiates a new term.
+     *
+     * @param bytes the bytes
+     * @param id the id
+     */
+    public Term(byte[] bytes, int id) {
+      mBytes = bytes;
+      mId = id;
+    }
+  }
+
+  /**
+   * Immutable front coded dictionary.
+   */
+  static final class Dictionary {
+
+    /** The front coded strings. */
+    private final byte[] mData;
+
+    /** The offset in mData of the first string of each block. */
+    private final int[] mBlocks;
+
+    /** The id of each string in sorted order. */
+    private final int[] mIds;
+
+    /** The ids in ascending order for reverse lookups. */
+    private final int[] mReverseIds;
+
+    /** The position in sorted order of each id in mReverseIds. */
+    private final int[] mReverseOrdinals;
+
+    /**
+     * Instantiates a new dictionary.
+     *
+     * @param terms the terms
+     */
+    public Dictionary(Term[] terms) {
+      Arrays.sort(terms, new Comparator<Term>() {
+        @Override
+        public int compare(Term t1, Term t2) {
+          int c = BYTES_COMPARATOR.compare(t1.mBytes, t2.mBytes);
+
+          return c != 0 ? c : Integer.compare(t1.mId, t2.mId);
+        }
+      });
+
+      int n = terms.length;
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+      mBlocks = new int[(n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+      mIds = new int[n];
+
+      byte[] previous = null;
+
+      for (int i = 0; i < n; ++i) {
+        byte[] b = terms[i].mBytes;
+
+        int shared = 0;
+
+        if (i % BLOCK_SIZE == 0) {
+          mBlocks[i / BLOCK_SIZE] = out.size();
+        } else {
+          int l = Math.min(previous.length, b.length);
+
+          while (shared < l && previous[shared] == b[shared]) {
+            ++shared;
+          }
+        }
+
+        writeInt(out, shared);
+        writeInt(out, b.length - shared);
+        out.write(b, shared, b.length - shared);
+
+        mIds[i] = terms[i].mId;
+
+        previous = b;
+      }
+
+      mData = out.toByteArray();
+
+      long[] pairs = new long[n];
+
+      for (int i = 0; i < n; ++i) {
+        pairs[i] = ((long) mIds[i] << 32) | i;
+      }
+
+      Arrays.sort(pairs);
+
+      mReverseIds = new int[n];
+      mReverseOrdinals = new int[n];
+
+      for (int i = 0; i < n; ++i) {
+        mReverseIds[i] = (int) (pairs[i] >> 32);
+        mReverseOrdinals[i] = (int) pairs[i];
+      }
+    }
+
+    /**
+     * Returns the number of strings.
+     *
+     * @return the int
+     */
+    public int size() {
+      return mIds.length;
+    }
+
+    /**
+     * Decode the string at a position in sorted order.
+     *
+     * @param ordinal the ordinal
+     * @return the UTF-8 bytes of the string.
+     */
+    public byte[] term(int ordinal) {
+      Cursor c = new Cursor(this, ordinal / BLOCK_SIZE);
+
+      for (int i = ordinal % BLOCK_SIZE; i >= 0; --i) {
+        c.next();
+      }
+
+      return Arrays.copyOf(c.mTerm, c.mLength);
+    }
+
+    /**
+     * Returns the position of the first string that is greater than or
+     * equal to a key.
+     *
+     * @param key the key
+     * @return the ordinal
+     */
+    public int lowerBound(byte[] key) {
+      if (size() == 0) {
+        return 0;
+      }
+
+      // Find the last block whose first string is less than the key
+      int lo = 0;
+      int hi = mBlocks.length - 1;
+      int block = 0;
+
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+
+        Cursor c = new Cursor(this, mid);
+        c.next();
+
+        if (compare(c.mTerm, c.mLength, key) < 0) {
+          block = mid;
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+
+      Cursor c = new Cursor(this, block);
+
+      int ordinal = block * BLOCK_SIZE;
+
+      while (ordinal < size()) {
+        c.next();
+
+        if (compare(c.mTerm, c.mLength, key) >= 0) {
+          break;
+        }
+
+        ++ordinal;
+      }
+
+      return ordinal;
+    }
+
+    /**
+     * Returns the id of the string at a position if it equals a key.
+     *
+     * @param key the key
+     * @return the id or NOT_FOUND.
+     */
+    public int get(byte[] key) {
+      int ordinal = lowerBound(key);
+
+      if (ordinal < size() && Arrays.equals(term(ordinal), key)) {
+        return mIds[ordinal];
+      }
+
+      return NOT_FOUND;
+    }
+
+    /**
+     * Returns the range of positions of strings starting with a prefix.
+     *
+     * @param prefix the prefix
+     * @return the start (inclusive) and end (exclusive) ordinals.
+     */
+    public int[] range(byte[] prefix) {
+      int start = lowerBound(prefix);
+
+      byte[] next = successor(prefix);
+
+      int end = next != null ? lowerBound(next) : size();
+
+      return new int[] { start, end };
+    }
+
+    /**
+     * Returns the ordinal of an id.
+     *
+     * @param id the id
+     * @return the ordinal or -1 if the id is not in the dictionary.
+     */
+    public int ordinal(int id) {
+      int i = Arrays.binarySearch(mReverseIds, id);
+
+      return i >= 0 ? mReverseOrdinals[i] : -1;
+    }
+  }
+
+  /**
+   * Decodes the strings of a block in order.
+   */
+  private static final class Cursor {
+
+    /** The m dictionary. */
+    private final Dictionary mDictionary;
+
+    /** The current position in the data. */
+    private int mP;
+
+    /** The current string, the first mLength bytes are valid. */
+    private byte[] mTerm = new byte[64];
+
+    /** The m length. */
+    private int mLength = 0;
+
+    /**
+     * Instantiates a new cursor at the start of a block.
+     *
+     * @param dictionary the dictionary
+     * @param block the block
+     */
+    public Cursor(Dictionary dictionary, int block) {
+      mDictionary = dictionary;
+      mP = dictionary.mBlocks[block];
+    }
+
+    /**
+     * Decode the next string.
+     */
+    public void next() {
+      byte[] data = mDictionary.mData;
+
+      int shared = 0;
+      int shift = 0;
+      int b;
+
+      do {
+        b = data[mP++];
+        shared |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+
+      int suffix = 0;
+      shift = 0;
+
+      do {
+        b = data[mP++];
+        suffix |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+
+      mLength = shared + suffix;
+
+      if (mLength > mTerm.length) {
+        mTerm = Arrays.copyOf(mTerm, mLength * 2);
+      }
+
+      System.arraycopy(data, mP, mTerm, shared, suffix);
+
+      mP += suffix;
+    }
+  }
+
+  /**
+   * Add a single string. Since the dictionary is immutable this rebuilds
+   * it, so it is only intended for occasional updates; use load() to
+   * populate the store.
+   *
+   * @param value the value
+   * @param id the id
+   */
+  public synchronized void put(String value, int id) {
+    if (value == null) {
+      return;
+    }
+
+    Dictionary dictionary = getSnapshot();
+
+    int n = dictionary != null ? dictionary.size() : 0;
+
+    Term[] terms = new Term[n + 1];
+
+    for (int i = 0; i < n; ++i) {
+      terms[i] = new Term(dictionary.term(i), dictionary.mIds[i]);
+    }
+
+    terms[n] = new Term(value.getBytes(StandardCharsets.UTF_8), id);
+
+    update(new Dictionary(terms));
+  }
+
+  /**
+   * Contains.
+   *
+   * @param value the value
+   * @return true, if successful
+   */
+  public boolean contains(String value) {
+    return get(value) != NOT_FOUND;
+  }
+
+  /**
+   * Gets the id of a string.
+   *
+   * @param value the value
+   * @return the id or NOT_FOUND.
+   */
+  public int get(String value) {
+    Dictionary dictionary = getSnapshot();
+
+    if (dictionary == null || value == null) {
+      return NOT_FOUND;
+    }
+
+    return dictionary.get(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Gets the ids of all strings starting with a prefix, ordered by string.
+   *
+   * @param prefix the prefix
+   * @return the ids
+   */
+  public int[] getPrefix(String prefix) {
+    Dictionary dictionary = getSnapshot();
+
+    if (dictionary == null) {
+      return EMPTY;
+    }
+
+    int[] range = dictionary.range(prefix.getBytes(StandardCharsets.UTF_8));
+
+    return Arrays.copyOfRange(dictionary.mIds, range[0], range[1]);
+  }
+
+  /**
+   * Gets the ids of all strings that do not start with a prefix, ordered by
+   * string.
+   *
+   * @param prefix the prefix
+   * @return the ids
+   */
+  public int[] getNotPrefix(String prefix) {
+    Dictionary dictionary = getSnapshot();
+
+    if (dictionary == null) {
+      return EMPTY;
+    }
+
+    int[] range = dictionary.range(prefix.getBytes(StandardCharsets.UTF_8));
+
+    int n = dictionary.size();
+
+    int[] ret = new int[n - (range[1] - range[0])];
+
+    System.arraycopy(dictionary.mIds, 0, ret, 0, range[0]);
+    System.arraycopy(dictionary.mIds,
+        range[1],
+        ret,
+        range[0],
+        n - range[1]);
+
+    return ret;
+  }
+
+  /**
+   * Reverse lookup of the string with a given id.
+   *
+   * @param id the id
+   * @return the string or null if the id is not in the dictionary.
+   */
+  public String getValue(int id) {
+    Dictionary dictionary = getSnapshot();
+
+    if (dictionary == null) {
+      return null;
+    }
+
+    int ordinal = dictionary.ordinal(id);
+
+    if (ordinal == -1) {
+      return null;
+    }
+
+    return new String(dictionary.term(ordinal), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the number of strings in the dictionary.
+   *
+   * @return the int
+   */
+  public int size() {
+    Dictionary dictionary = getSnapshot();
+
+    return dictionary != null ? dictionary.size() : 0;
+  }
+
+  /**
+   * Read (id, string) pairs from the first two columns of a result set.
+   *
+   * @param rs the rs
+   * @return the dictionary
+   * @throws SQLException the SQL exception
+   */
+  @Override
+  protected Dictionary read(ResultSet rs) throws SQLException {
+    Term[] terms = new Term[1024];
+    int n = 0;
+
+    while (rs.next()) {
+      String value = rs.getString(2);
+
+      if (value == null) {
+        continue;
+      }
+
+      if (n == terms.length) {
+        terms = Arrays.copyOf(terms, n * 2);
+      }
+
+      terms[n++] = new Term(value.getBytes(StandardCharsets.UTF_8),
+          rs.getInt(1));
+    }
+
+    return new Dictionary(Arrays.copyOf(terms, n));
+  }
+
+  /**
+   * Returns the smallest byte string greater than every string starting
+   * with a prefix.
+   *
+   * @param prefix the prefix
+   * @return the successor or null if there is none, i.e. every string
+   *         after the prefix starts with it.
+   */
+  private static byte[] successor(byte[] prefix) {
+    for (int i = prefix.length - 1; i >= 0; --i) {
+      if (prefix[i] != (byte) 0xFF) {
+        byte[] ret = Arrays.copyOf(prefix, i + 1);
+        ++ret[i];
+        return ret;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Compare the first n bytes of one array with another as unsigned bytes.
+   *
+   * @param b1 the b 1
+   * @param n the number of bytes of b1 to compare.
+   * @param b2 the b 2
+   * @return the comparison
+   */
+  private static int compare(byte[] b1, int n, byte[] b2) {
+    int l = Math.min(n, b2.length);
+
+    for (int i = 0; i < l; ++i) {
+      int c = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+
+      if (c != 0) {
+        return c;
+      }
+    }
+
+    return n - b2.length;
+  }
+
+  /**
+   * Write a non-negative int using 7 bits per byte.
+   *
+   * @param out the out
+   * @param v the v
+   */
+  private static void writeInt(ByteArrayOutputStream out, int v) {
+    while ((v & ~0x7F) != 0) {
+      out.write((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+
+    out.write(v);
+  }
 }
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Tracks the version of the database, as read by
+ * DatabaseServlet.getVersion(), and clears registered stores whenever it
+ * changes so that in memory copies of the data are reloaded after a data
+ * release. The version is read at most once per check interval no matter
+ * how often check() is called.
+ *
+ * @author Antony Holmes
+ */
+public class DataVersion {
+
+  /** The Constant UNKNOWN. */
+  public static final int UNKNOWN = -1;
+
+  /** The Constant DEFAULT_CHECK_INTERVAL_MS. */
+  public static final long DEFAULT_CHECK_INTERVAL_MS = 10000;
+
+  /** The last version read from the database. */
+  private static final AtomicInteger VERSION = new AtomicInteger(UNKNOWN);
+
+  /** When the version was last read. */
+  private static final AtomicLong LAST_CHECK = new AtomicLong(0);
+
+  /** The Constant CHECK_INTERVAL. */
+  private static final AtomicLong CHECK_INTERVAL = new AtomicLong(
+      DEFAULT_CHECK_INTERVAL_MS);
+
+  /** The stores to clear when the version changes. */
+  private static final List<ConcurrentStore> STORES = new CopyOnWriteArrayList<ConcurrentStore>();
+
+  /**
+   * Instantiates a new data version.
+   */
+  private DataVersion() {
+    // Do nothing
+  }
+
+  /**
+   * Register a store to be cleared when the version changes.
+   *
+   * @param store the store
+   */
+  public static void register(ConcurrentStore store) {
+    STORES.add(store);
+  }
+
+  /**
+   * Sets how often the version is read from the database.
+   *
+   * @param intervalMs the interval in milliseconds.
+   */
+  public static void setCheckInterval(long intervalMs) {
+    CHECK_INTERVAL.set(intervalMs);
+  }
+
+  /**
+   * Returns the last version read from the database.
+   *
+   * @return the version or UNKNOWN if it has not been read.
+   */
+  public static int getVersion() {
+    return VERSION.get();
+  }
+
+  /**
+   * Read the version if the check interval has elapsed, clearing the
+   * registered stores if it has changed.
+   *
+   * @param connection the connection
+   * @return the current version
+   * @throws SQLException the SQL exception
+   */
+  public static int check(Connection connection) throws SQLException {
+    if (due()) {
+      update(DatabaseServlet.getVersion(connection));
+    }
+
+    return VERSION.get();
+  }
+
+  /**
+   * Read the version if the check interval has elapsed, clearing the
+   * registered stores if it has changed.
+   *
+   * @param connection the connection
+   * @return the current version
+   */
+  public static int check(JdbcTemplate connection) {
+    if (due()) {
+      update(DatabaseServlet.getVersion(connection));
+    }
+
+    return VERSION.get();
+  }
+
+  /**
+   * Returns true if the version should be read. Only one caller per
+   * interval is told to read it.
+   *
+   * @return true, if successful
+   */
+  private static boolean due() {
+    long now = System.currentTimeMillis();
+    long last = LAST_CHECK.get();
+
+    return now - last >= CHECK_INTERVAL.get()
+        && LAST_CHECK.compareAndSet(last, now);
+  }
+
+  /**
+   * Record the version read from the database.
+   *
+   * @param version the version
+   */
+  private static void update(int version) {
+    int previous = VERSION.getAndSet(version);
+
+    // Stores loaded before the first check are assumed to be current
+    if (previous != UNKNOWN && previous != version) {
+      for (ConcurrentStore store : STORES) {
+        store.clear();
+      }
+    }
+  }
+}
@@ -18,6 +18,7 @@ package edu.columbia.rdf.edb.http;
 import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -47,6 +48,7 @@ import org.jebtk.database.JDBCConnection;
 import org.jebtk.database.ResultsSetTable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 
 import edu.columbia.rdf.edb.EDB;
 import edu.columbia.rdf.edb.Experiment;
@@ -74,9 +76,6 @@ public abstract class DatabaseServlet {
   /** The Constant TAG_ID_SQL. */
   private static final String TAG_ID_SQL = "SELECT tags.id FROM tags WHERE tags.name = ?";
 
-  /** The Constant EXPERIMENT_SAMPLES_SQL. */
-  private static final String EXPERIMENT_SAMPLES_SQL = "SELECT samples.id FROM samples WHERE samples.experiment_id = ?";
-
   /** The Constant VERSION_SQL. */
   private static final String VERSION_SQL = "SELECT version.id, EXTRACT(EPOCH FROM version.version) FROM version ORDER BY version.version DESC LIMIT 1";
 
@@ -137,6 +136,21 @@ public abstract class DatabaseServlet {
   /** The Constant SAMPLE_EXPERIMENT_SQL. */
   private static final String SAMPLE_EXPERIMENT_SQL = "SELECT samples.experiment_id FROM samples WHERE samples.id = ?";
 
+  /** The Constant SAMPLE_EXPERIMENTS_SQL. */
+  private static final String SAMPLE_EXPERIMENTS_SQL = "SELECT samples.id, samples.experiment_id FROM samples";
+
+  /**
+   * In memory map of samples to experiments, loaded on first use and
+   * reloaded when the data version changes or the map reaches its maximum
+   * age.
+   */
+  private static final ConcurrentIdIdStore SAMPLE_EXPERIMENTS = new ConcurrentIdIdStore(
+      ConcurrentIdIdStore.DEFAULT_MAX_AGE_MS);
+
+  static {
+    DataVersion.register(SAMPLE_EXPERIMENTS);
+  }
+
   /** The Constant ALL_VIEW. */
   private static final Set<String> ALL_VIEW = CollectionUtils.asSet("all");
 
@@ -188,6 +202,26 @@ public abstract class DatabaseServlet {
     return version;
   }
 
+  /**
+   * Returns the current version of the ExperimentDB database.
+   *
+   * @param connection the connection
+   * @return the version or -1 if there is no version.
+   */
+  public static int getVersion(JdbcTemplate connection) {
+    Integer version = Query.query(connection,
+        VERSION_SQL,
+        new RowMapper<Integer>() {
+          @Override
+          public Integer mapRow(ResultSet rs, int rowNum)
+              throws SQLException {
+            return (int) rs.getDouble(2);
+          }
+        });
+
+    return version != null ? version : -1;
+  }
+
   /**
    * Returns the public id of an experiment.
    *
@@ -232,6 +266,16 @@ public abstract class DatabaseServlet {
    */
   protected static int getExperimentId(Connection connection, int sampleId)
       throws SQLException {
+    DataVersion.check(connection);
+
+    SAMPLE_EXPERIMENTS.ensureLoaded(connection, SAMPLE_EXPERIMENTS_SQL);
+
+    int id = SAMPLE_EXPERIMENTS.get(sampleId);
+
+    if (id != ConcurrentIdIdStore.NOT_FOUND) {
+      return id;
+    }
+
     Cache cache = CacheManager.getInstance()
         .getCache("sample-experiment-cache");
 
@@ -598,18 +642,14 @@ public abstract class DatabaseServlet {
       Connection connection,
       int experimentId) throws SQLException {
 
-    PreparedStatement statement = connection
-        .prepareStatement(EXPERIMENT_SAMPLES_SQL);
-
-    List<Integer> ids = new ArrayList<Integer>();
+    DataVersion.check(connection);
 
-    try {
-      statement.setInt(1, experimentId);
+    SAMPLE_EXPERIMENTS.ensureLoaded(connection, SAMPLE_EXPERIMENTS_SQL);
 
-      ids.addAll(JDBCConnection.getIntList(statement));
+    List<Integer> ids = new ArrayList<Integer>();
 
-    } finally {
-      statement.close();
+    for (int id : SAMPLE_EXPERIMENTS.getKeys(experimentId)) {
+      ids.add(id);
     }
 
     return ids;
@@ -683,7 +723,7 @@ public abstract class DatabaseServlet {
 
     boolean isAdmin = WebAuthentication.getIsAdminOrSuper(connection, userId);
 
-    Collection<Integer> userGroupIds = Groups.userGroups(connection, userId);
+    IdBitmap visible = isAdmin ? null : Groups.userSamples(connection, userId);
 
     while (table.next()) {
       int sampleId = table.getInt(0);
@@ -691,13 +731,8 @@ public abstract class DatabaseServlet {
       int type = table.getInt(2);
       int organism = table.getInt(4);
 
-      Collection<Integer> sampleGroupIds = Groups.sampleGroups(connection,
-          sampleId);
-
-      // Determine if this one of the user groups ids is in the sample group ids
-      boolean inGroup = CollectionUtils.contains(userGroupIds, sampleGroupIds);
-
-      if (!isAdmin && !inGroup) {
+      // Determine if the sample is in one of the user's groups
+      if (!isAdmin && !visible.contains(sampleId)) {
         continue;
       }
 
@@ -738,7 +773,9 @@ public abstract class DatabaseServlet {
       jsonArray.add(EDB.HEADING_DATE, table.getString(5));
 
       // Add the groups
-      groupsJson(connection, sampleGroupIds, jsonArray);
+      groupsJson(connection,
+          Groups.sampleGroups(connection, sampleId),
+          jsonArray);
 
       /*
        * if (tagView) { jsonArray.startArray(Application.HEADING_TAGS);
@@ -1150,45 +1187,54 @@ public abstract class DatabaseServlet {
       int tag,
       JsonBuilder array) throws SQLException {
 
-    ResultsSetTable table = getTextTagTable(connection, sampleId, tag);
+    // Only query the tables that have values for the tag
+    int types = TagTypes.getTypes(connection, tag);
 
     boolean found = false;
 
-    while (table.next()) {
-      array.startObject();
-      array.add(EDB.HEADING_ID, table.getInt(1));
-      array.add(EDB.HEADING_VALUE, table.getString(2));
-      array.endObject();
+    if ((types & TagTypes.TEXT) != 0) {
+      ResultsSetTable table = getTextTagTable(connection, sampleId, tag);
 
-      found = true;
-    }
+      while (table.next()) {
+        array.startObject();
+        array.add(EDB.HEADING_ID, table.getInt(1));
+        array.add(EDB.HEADING_VALUE, table.getString(2));
+        array.endObject();
 
-    if (found) {
-      return;
+        found = true;
+      }
+
+      if (found) {
+        return;
+      }
     }
 
-    table = getIntTagTable(connection, sampleId, tag);
+    if ((types & TagTypes.INT) != 0) {
+      ResultsSetTable table = getIntTagTable(connection, sampleId, tag);
 
-    while (table.next()) {
-      array.startObject();
-      array.add(EDB.HEADING_ID, table.getInt(1));
-      array.add(EDB.HEADING_VALUE, table.getInt(2));
-      array.endObject();
+      while (table.next()) {
+        array.startObject();
+        array.add(EDB.HEADING_ID, table.getInt(1));
+        array.add(EDB.HEADING_VALUE, table.getInt(2));
+        array.endObject();
 
-      found = true;
-    }
+        found = true;
+      }
 
-    if (found) {
-      return;
+      if (found) {
+        return;
+      }
     }
 
-    table = getFloatTagTable(connection, sampleId, tag);
+    if ((types & TagTypes.FLOAT) != 0) {
+      ResultsSetTable table = getFloatTagTable(connection, sampleId, tag);
 
-    while (table.next()) {
-      array.startObject();
-      array.add(EDB.HEADING_ID, table.getInt(1));
-      array.add(EDB.HEADING_VALUE, table.getDataAsDouble(2));
-      array.endObject();
+      while (table.next()) {
+        array.startObject();
+        array.add(EDB.HEADING_ID, table.getInt(1));
+        array.add(EDB.HEADING_VALUE, table.getDataAsDouble(2));
+        array.endObject();
+      }
     }
   }
 
@@ -1206,31 +1252,40 @@ public abstract class DatabaseServlet {
       Collection<Integer> tags,
       JsonBuilder array) throws SQLException {
 
-    ResultsSetTable table = getTextTagsTable(connection, sampleId, tags);
+    // Skip the tables that have no values for any of the tags
+    int types = TagTypes.getTypes(connection, tags);
 
-    while (table.next()) {
-      array.startObject();
-      array.add(EDB.HEADING_ID, table.getInt(1));
-      array.add(EDB.HEADING_VALUE, table.getString(2));
-      array.endObject();
+    if ((types & TagTypes.TEXT) != 0) {
+      ResultsSetTable table = getTextTagsTable(connection, sampleId, tags);
+
+      while (table.next()) {
+        array.startObject();
+        array.add(EDB.HEADING_ID, table.getInt(1));
+        array.add(EDB.HEADING_VALUE, table.getString(2));
+        array.endObject();
+      }
     }
 
-    table = getIntTagsTable(connection, sampleId, tags);
+    if ((types & TagTypes.INT) != 0) {
+      ResultsSetTable table = getIntTagsTable(connection, sampleId, tags);
 
-    while (table.next()) {
-      array.startObject();
-      array.add(EDB.HEADING_ID, table.getInt(1));
-      array.add(EDB.HEADING_VALUE, table.getInt(2));
-      array.endObject();
+      while (table.next()) {
+        array.startObject();
+        array.add(EDB.HEADING_ID, table.getInt(1));
+        array.add(EDB.HEADING_VALUE, table.getInt(2));
+        array.endObject();
+      }
     }
 
-    table = getFloatTagsTable(connection, sampleId, tags);
+    if ((types & TagTypes.FLOAT) != 0) {
+      ResultsSetTable table = getFloatTagsTable(connection, sampleId, tags);
 
-    while (table.next()) {
-      array.startObject();
-      array.add(EDB.HEADING_ID, table.getInt(1));
-      array.add(EDB.HEADING_VALUE, table.getDataAsDouble(2));
-      array.endObject();
+      while (table.next()) {
+        array.startObject();
+        array.add(EDB.HEADING_ID, table.getInt(1));
+        array.add(EDB.HEADING_VALUE, table.getDataAsDouble(2));
+        array.endObject();
+      }
     }
   }
 
@@ -1860,10 +1915,14 @@ public abstract class DatabaseServlet {
 
     SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd");
 
+    boolean isAdmin = WebAuthentication.getIsAdminOrSuper(connection, userId);
+
+    IdBitmap visible = isAdmin ? null : Groups.userSamples(connection, userId);
+
     while (table.next()) {
       int sampleId = table.getInt(0);
 
-      if (!WebAuthentication.canViewSample(connection, sampleId, userId)) {
+      if (!isAdmin && !visible.contains(sampleId)) {
         continue;
       }
 
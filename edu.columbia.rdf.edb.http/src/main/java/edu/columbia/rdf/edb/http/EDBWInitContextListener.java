@@ -16,13 +16,19 @@
 package edu.columbia.rdf.edb.http;
 
 import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
 
+import javax.naming.NamingException;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.sql.DataSource;
 
 import org.jebtk.core.io.PathUtils;
 
+import edu.columbia.rdf.edb.EDB;
+
 /**
  * The listener interface for receiving EDBWInitContext events. The class that
  * is interested in processing a EDBWInitContext event implements this
@@ -48,6 +54,21 @@ public class EDBWInitContextListener implements ServletContextListener {
   /** The Constant VIEW_PARAM. */
   public static final String VIEW_PARAM = "view-permissions-enabled";
 
+  /** The Constant SEARCH_INDEX_PARAM. */
+  public static final String SEARCH_INDEX_PARAM = "search-index-enabled";
+
+  /** The Constant SEARCH_MODE_PARAM. */
+  public static final String SEARCH_MODE_PARAM = "search-mode";
+
+  /** The Constant SESSION_SECRET_PARAM. */
+  public static final String SESSION_SECRET_PARAM = "session-token-secret";
+
+  /** The Constant SESSION_TTL_PARAM. */
+  public static final String SESSION_TTL_PARAM = "session-token-ttl";
+
+  /** How long to wait for queued login attempts to be written on shutdown. */
+  private static final long LOGIN_WRITER_TIMEOUT_MS = 10000;
+
   /*
    * (non-Javadoc)
    * 
@@ -56,7 +77,8 @@ public class EDBWInitContextListener implements ServletContextListener {
    */
   @Override
   public void contextDestroyed(ServletContextEvent e) {
-    // Do nothing
+    // Write any queued login attempts before the pool goes away
+    LoginWriter.shutdown(LOGIN_WRITER_TIMEOUT_MS);
   }
 
   /*
@@ -92,6 +114,67 @@ public class EDBWInitContextListener implements ServletContextListener {
 
     context.setAttribute("dir", dir);
     context.setAttribute(DATA_DIR_PARAM, dir);
+
+    Search.setMode(
+        SearchMode.parse(context.getInitParameter(SEARCH_MODE_PARAM)));
+
+    String secret = context.getInitParameter(SESSION_SECRET_PARAM);
+
+    if (secret != null) {
+      SessionTokens.setSecret(secret);
+    }
+
+    String ttl = context.getInitParameter(SESSION_TTL_PARAM);
+
+    if (ttl != null) {
+      // The ttl is given in seconds
+      SessionTokens.setTtl(Long.parseLong(ttl) * 1000);
+    }
+
+    startLoginWriter();
+
+    boolean searchIndex = Boolean
+        .parseBoolean(context.getInitParameter(SEARCH_INDEX_PARAM));
+
+    if (searchIndex) {
+      SearchIndex.setEnabled(true);
+
+      loadSearchIndex();
+    }
+  }
+
+  /**
+   * Write login attempts in the background. If the data source cannot be
+   * found, attempts are written as they are made.
+   */
+  private static void startLoginWriter() {
+    try {
+      LoginWriter.start((DataSource) EDB.lookup("jdbc/experimentdb"));
+    } catch (NamingException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Load the search index at startup so that the first search does not pay
+   * for it. If this fails, the index is loaded on first use instead.
+   */
+  private static void loadSearchIndex() {
+    try {
+      DataSource ds = (DataSource) EDB.lookup("jdbc/experimentdb");
+
+      Connection connection = ds.getConnection();
+
+      try {
+        SearchIndex.get(connection);
+      } finally {
+        connection.close();
+      }
+    } catch (NamingException e) {
+      e.printStackTrace();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
   }
 
 }
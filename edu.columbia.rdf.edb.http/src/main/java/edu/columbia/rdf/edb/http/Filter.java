@@ -19,7 +19,6 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 import org.jebtk.core.collections.CollectionUtils;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -106,47 +105,25 @@ public class Filter {
       Collection<Integer> gids,
       boolean allMode) throws SQLException {
 
-    List<SampleBean> ret = new ArrayList<SampleBean>(samples.size());
-
-    if (allMode) {
-      // Add sample only if it belongs to all groups
-
-      if (gids.size() == 0) {
-        // If there are no group ids specified, then match to all
-        gids = Persons.groupIds(jdbcTemplate, auth.getId());
-      }
-
-      for (SampleBean sample : samples) {
-        boolean include = true;
-
-        Set<Integer> sgids = CollectionUtils.toSet(Samples.getGroups(jdbcTemplate, sample.getId())); //sample.getGroups());
+    if (allMode && gids.size() == 0) {
+      // If there are no group ids specified, then samples must belong to
+      // all of the user's groups
+      gids = Persons.groupIds(jdbcTemplate, auth.getId());
+    }
 
-        // Each sample must in all of the groups
-        for (int gid : gids) {
-          if (!sgids.contains(gid)) {
-            include = false;
-            break;
-          }
-        }
+    if (CollectionUtils.isNullOrEmpty(gids)) {
+      return samples;
+    }
 
-        if (include) {
-          ret.add(sample);
-        }
-      }
-    } else {
-      // Add sample if it belongs to any of the groups
+    // Combine the groups once, intersecting them in all mode, rather than
+    // looking up the groups of each sample
+    IdBitmap gsids = Groups.groupSamples(jdbcTemplate, gids, allMode);
 
-      if (CollectionUtils.isNullOrEmpty(gids)) {
-        return samples;
-      }
+    List<SampleBean> ret = new ArrayList<SampleBean>(samples.size());
 
-      for (SampleBean sample : samples) {
-        for (int gid : Samples.getGroups(jdbcTemplate, sample.getId())) {
-          if (gids.contains(gid)) {
-            ret.add(sample);
-            break;
-          }
-        }
+    for (SampleBean sample : samples) {
+      if (gsids.contains(sample.getId())) {
+        ret.add(sample);
       }
     }
 
@@ -37,13 +37,70 @@ public class Geo {
 
   public static final String PLATFORM_SQL = "SELECT geo_platforms.name FROM geo_platforms WHERE geo_platforms.id = ?";
 
+  public static final String ALL_SERIES_SQL = "SELECT geo_series.id, geo_series.name FROM geo_series";
+
+  public static final String ALL_PLATFORMS_SQL = "SELECT geo_platforms.id, geo_platforms.name FROM geo_platforms";
+
+  /** GEO series ids to names. */
+  private static final ConcurrentValueIdStore SERIES = new ConcurrentValueIdStore();
+
+  /** GEO platform ids to names. */
+  private static final ConcurrentValueIdStore PLATFORMS = new ConcurrentValueIdStore();
+
+  static {
+    // Both tables are small and rarely change so they are held in memory
+    // and reloaded after each data release.
+    DataVersion.register(SERIES);
+    DataVersion.register(PLATFORMS);
+  }
+
+  /**
+   * Make sure the series and platform dictionaries are loaded and current.
+   * This should be called once before resolving the names of a batch of
+   * records with getSeries(int) and getPlatform(int).
+   *
+   * @param jdbcTemplate the jdbc template
+   */
+  public static void load(JdbcTemplate jdbcTemplate) {
+    DataVersion.check(jdbcTemplate);
+
+    SERIES.ensureLoaded(jdbcTemplate, ALL_SERIES_SQL);
+    PLATFORMS.ensureLoaded(jdbcTemplate, ALL_PLATFORMS_SQL);
+  }
+
   public static String getSeries(JdbcTemplate jdbcTemplate, int seriesId)
       throws SQLException {
-    return Query.asString(jdbcTemplate, SERIES_SQL, seriesId);
+    load(jdbcTemplate);
+
+    return getSeries(seriesId);
   }
 
   public static String getPlatform(JdbcTemplate jdbcTemplate, int platformId)
       throws SQLException {
-    return Query.asString(jdbcTemplate, PLATFORM_SQL, platformId);
+    load(jdbcTemplate);
+
+    return getPlatform(platformId);
+  }
+
+  /**
+   * Gets the name of a series from memory.
+   *
+   * @param seriesId the series id
+   * @return the name or null if the series does not exist or load() has not
+   *         been called.
+   */
+  public static String getSeries(int seriesId) {
+    return SERIES.getValue(seriesId);
+  }
+
+  /**
+   * Gets the name of a platform from memory.
+   *
+   * @param platformId the platform id
+   * @return the name or null if the platform does not exist or load() has
+   *         not been called.
+   */
+  public static String getPlatform(int platformId) {
+    return PLATFORMS.getValue(platformId);
   }
 }
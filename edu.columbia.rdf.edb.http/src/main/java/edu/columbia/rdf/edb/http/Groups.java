@@ -18,6 +18,8 @@ package edu.columbia.rdf.edb.http;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -38,9 +40,6 @@ public class Groups {
   /** The Constant GROUP_IDS_SQL. */
   private static final String GROUP_IDS_SQL = "SELECT groups_persons.group_id FROM groups_persons WHERE groups_persons.person_id = ?";
 
-  /** Return the ids of the groups associated with a sample. */
-  private static final String SAMPLE_GROUPS_SQL = "SELECT groups_samples.group_id FROM groups_samples WHERE groups_samples.sample_id = ?";
-
   /** The Constant SAMPLE_GROUPS_COUNT_SQL. */
   private static final String SAMPLE_GROUPS_COUNT_SQL = "SELECT COUNT(id) FROM groups_samples WHERE groups_samples.sample_id = ? AND groups_samples.group_id = ANY(?::int[])";
 
@@ -54,6 +53,116 @@ public class Groups {
 
   public static final String GROUP_SQL = "SELECT groups.id, groups.name, groups.color FROM groups WHERE groups.id = ?";
 
+  /** The Constant ALL_GROUPS_SAMPLES_SQL. */
+  private static final String ALL_GROUPS_SAMPLES_SQL = "SELECT groups_samples.group_id, groups_samples.sample_id FROM groups_samples";
+
+  /** The Constant MAX_CACHED_GROUP_SETS. */
+  private static final int MAX_CACHED_GROUP_SETS = 1000;
+
+  /**
+   * How long sample membership is used before groups_samples is read again,
+   * so that samples shared or unshared without a data version change are
+   * picked up within five minutes.
+   */
+  private static final long MEMBERSHIP_MAX_AGE_MS = 300000;
+
+  /**
+   * Group membership of samples. Once it reaches its maximum age or the
+   * data version changes, one thread reads groups_samples again while the
+   * others keep using the old membership.
+   */
+  private static final ConcurrentSnapshotStore<Membership> MEMBERSHIP = new ConcurrentSnapshotStore<Membership>(
+      MEMBERSHIP_MAX_AGE_MS) {
+    @Override
+    protected Membership read(ResultSet rs) throws SQLException {
+      Membership ret = new Membership();
+
+      ret.mGroupsSamples.load(rs);
+
+      return ret;
+    }
+  };
+
+  static {
+    DataVersion.register(new ConcurrentStore() {
+      @Override
+      public void clear() {
+        MEMBERSHIP.invalidate();
+      }
+    });
+    DataVersion.register(new ConcurrentStore() {
+      @Override
+      public void clear() {
+        CacheManager.getInstance().getCache("user-groups-cache").removeAll();
+      }
+    });
+  }
+
+  /**
+   * One load of groups_samples together with the bitmaps derived from it.
+   * Reloading replaces the whole object so derived bitmaps are never older
+   * than the membership they were built from.
+   */
+  private static class Membership {
+
+    /** Group ids to sample ids and vice versa. */
+    private final ConcurrentIdIdStore mGroupsSamples = new ConcurrentIdIdStore();
+
+    /** The samples of each group as a bitmap, built on demand. */
+    private final ConcurrentIdValueStore<IdBitmap> mGroupBitmaps = new ConcurrentIdValueStore<IdBitmap>();
+
+    /**
+     * The samples visible to each set of groups, keyed on the sorted group
+     * ids. Users are mapped to their groups by userGroups() so users with
+     * the same groups share an entry.
+     */
+    private final ConcurrentKeyValueStore<String, IdBitmap> mVisibleSamples = new ConcurrentKeyValueStore<String, IdBitmap>(
+        MAX_CACHED_GROUP_SETS, ConcurrentKeyValueStore.EvictionPolicy.LRU);
+
+    /**
+     * Returns the bitmap of the samples in a group, creating it if
+     * necessary.
+     *
+     * @param groupId the group id
+     * @return the samples. The bitmap must not be modified.
+     */
+    public IdBitmap getGroupBitmap(int groupId) {
+      IdBitmap ret = mGroupBitmaps.get(groupId);
+
+      if (ret == null) {
+        ret = IdBitmap.of(mGroupsSamples.getValues(groupId));
+
+        mGroupBitmaps.put(groupId, ret);
+      }
+
+      return ret;
+    }
+
+    /**
+     * Returns the samples in any of a set of groups.
+     *
+     * @param groupIds the group ids
+     * @return the samples. The bitmap must not be modified.
+     */
+    public IdBitmap getVisibleSamples(Collection<Integer> groupIds) {
+      String key = getGroupSetKey(groupIds);
+
+      IdBitmap ret = mVisibleSamples.get(key);
+
+      if (ret == null) {
+        ret = new IdBitmap();
+
+        for (int groupId : groupIds) {
+          ret = ret.or(getGroupBitmap(groupId));
+        }
+
+        mVisibleSamples.put(key, ret);
+      }
+
+      return ret;
+    }
+  }
+
   private static class GroupBeanMapper implements RowMapper<GroupBean> {
     @Override
     public GroupBean mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -171,7 +280,15 @@ public class Groups {
    */
   public static Collection<Integer> sampleGroups(Connection connection,
       int sampleId) throws SQLException {
-    return Database.getIdsSet(connection, SAMPLE_GROUPS_SQL, sampleId);
+    int[] gids = getMembership(connection).mGroupsSamples.getKeys(sampleId);
+
+    List<Integer> ret = new ArrayList<Integer>(gids.length);
+
+    for (int gid : gids) {
+      ret.add(gid);
+    }
+
+    return ret;
   }
 
   /**
@@ -202,13 +319,84 @@ public class Groups {
   public static boolean userInSampleGroups(Connection connection,
       int userId,
       int sampleId) throws SQLException {
-    Collection<Integer> userGroupIds = Groups.userGroups(connection, userId);
+    return userSamples(connection, userId).contains(sampleId);
+  }
 
-    Collection<Integer> sampleGroupIds = Groups.sampleGroups(connection,
-        sampleId);
+  /**
+   * Return the samples in any of the groups a user belongs to, i.e. the
+   * samples the user can view unless they are an administrator.
+   *
+   * @param connection the connection
+   * @param userId the user id
+   * @return the samples. The bitmap must not be modified.
+   * @throws SQLException the SQL exception
+   */
+  public static IdBitmap userSamples(Connection connection, int userId)
+      throws SQLException {
+    return getMembership(connection)
+        .getVisibleSamples(userGroups(connection, userId));
+  }
 
-    // Determine if this one of the user groups ids is in the sample group ids
-    return userInSampleGroups(userGroupIds, sampleGroupIds);
+  /**
+   * Return the samples in any of the groups a user belongs to.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param userId the user id
+   * @return the samples. The bitmap must not be modified.
+   * @throws SQLException the SQL exception
+   */
+  public static IdBitmap userSamples(JdbcTemplate jdbcTemplate, int userId)
+      throws SQLException {
+    return getMembership(jdbcTemplate)
+        .getVisibleSamples(userGroups(jdbcTemplate, userId));
+  }
+
+  /**
+   * Returns the current sample membership, reading groups_samples if it
+   * has not been read, the data version has changed or it has reached its
+   * maximum age.
+   *
+   * @param connection the connection
+   * @return the membership
+   * @throws SQLException the SQL exception
+   */
+  private static Membership getMembership(Connection connection)
+      throws SQLException {
+    DataVersion.check(connection);
+
+    return MEMBERSHIP.ensureLoaded(connection, ALL_GROUPS_SAMPLES_SQL);
+  }
+
+  /**
+   * Returns the current sample membership.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @return the membership
+   */
+  private static Membership getMembership(JdbcTemplate jdbcTemplate) {
+    DataVersion.check(jdbcTemplate);
+
+    return MEMBERSHIP.ensureLoaded(jdbcTemplate, ALL_GROUPS_SAMPLES_SQL);
+  }
+
+  /**
+   * Returns a key identifying a set of groups regardless of order.
+   *
+   * @param groupIds the group ids
+   * @return the key
+   */
+  private static String getGroupSetKey(Collection<Integer> groupIds) {
+    int[] ids = new int[groupIds.size()];
+
+    int i = 0;
+
+    for (int gid : groupIds) {
+      ids[i++] = gid;
+    }
+
+    Arrays.sort(ids);
+
+    return Arrays.toString(ids);
   }
 
   /**
@@ -223,6 +411,64 @@ public class Groups {
     return CollectionUtils.contains(userGroupIds, sampleGroupIds);
   }
 
+  /**
+   * Return the samples in a group from memory.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param groupId the group id
+   * @return the samples. The bitmap must not be modified.
+   */
+  public static IdBitmap groupSamples(JdbcTemplate jdbcTemplate,
+      int groupId) {
+    return getMembership(jdbcTemplate).getGroupBitmap(groupId);
+  }
+
+  /**
+   * Return the samples in any or all of a set of groups from memory.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param groupIds the group ids
+   * @param allMode if true, only return samples in all of the groups,
+   *          otherwise return samples in any of them.
+   * @return the samples. The bitmap must not be modified.
+   */
+  public static IdBitmap groupSamples(JdbcTemplate jdbcTemplate,
+      Collection<Integer> groupIds,
+      boolean allMode) {
+    Membership membership = getMembership(jdbcTemplate);
+
+    IdBitmap ret = null;
+
+    for (int groupId : groupIds) {
+      IdBitmap samples = membership.getGroupBitmap(groupId);
+
+      if (ret == null) {
+        ret = samples;
+      } else if (allMode) {
+        ret = ret.and(samples);
+      } else {
+        ret = ret.or(samples);
+      }
+
+      if (allMode && ret.isEmpty()) {
+        break;
+      }
+    }
+
+    return ret != null ? ret : new IdBitmap();
+  }
+
+  /**
+   * Return the groups associated with a sample from memory.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param sampleId the sample id
+   * @return the group ids in ascending order.
+   */
+  public static int[] sampleGroups(JdbcTemplate jdbcTemplate, int sampleId) {
+    return getMembership(jdbcTemplate).mGroupsSamples.getKeys(sampleId);
+  }
+
   public static List<GroupBean> getGroups(JdbcTemplate jdbcTemplate)
       throws SQLException {
     return Query.asList(jdbcTemplate, GROUPS_SQL, GROUP_BEAN_MAPPER);
@@ -230,7 +476,8 @@ public class Groups {
 
   public static List<GroupBean> getGroups(JdbcTemplate jdbcTemplate,
       Collection<Integer> gids) throws SQLException {
-    return Query.asList(jdbcTemplate, GROUP_SQL, GROUP_BEAN_MAPPER, gids);
+    return Query
+        .asBatchList(jdbcTemplate, GROUP_SQL, GROUP_BEAN_MAPPER, gids);
   }
 
 }
@@ -0,0 +1,912 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compressed set of int ids. Ids are split into chunks of 65536 by their
+ * upper 16 bits and each chunk is stored either as a sorted array of the
+ * lower 16 bits, when it is sparse, or as a 65536 bit bitmap, when it is
+ * dense. This keeps sparse sets small while set operations on dense sets
+ * work a 64 bit word at a time.
+ *
+ * Bitmaps are not thread safe. Set operations return new bitmaps and
+ * leave their operands unchanged.
+ */
+public class IdBitmap {
+
+  /** The maximum number of values in an array chunk. */
+  private static final int ARRAY_MAX = 4096;
+
+  /** The number of 64 bit words in a bitmap chunk. */
+  private static final int WORDS = 1024;
+
+  /**
+   * A chunk of 65536 ids stored either as a sorted array or as a bitmap.
+   */
+  private static final class Chunk {
+
+    /** The sorted values, when the chunk is an array. */
+    private char[] mArray;
+
+    /** The bits, when the chunk is a bitmap. */
+    private long[] mBits;
+
+    /** The number of values in the chunk. */
+    private int mSize;
+
+    /**
+     * Checks if the chunk is a bitmap.
+     *
+     * @return true, if is bitmap
+     */
+    public boolean isBitmap() {
+      return mBits != null;
+    }
+
+    /**
+     * Contains.
+     *
+     * @param v the v
+     * @return true, if successful
+     */
+    public boolean contains(char v) {
+      if (mBits != null) {
+        return (mBits[v >>> 6] & (1L << v)) != 0;
+      } else {
+        return Arrays.binarySearch(mArray, 0, mSize, v) >= 0;
+      }
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param v the v
+     */
+    public void add(char v) {
+      if (mBits != null) {
+        long w = mBits[v >>> 6];
+        long b = 1L << v;
+
+        if ((w & b) == 0) {
+          mBits[v >>> 6] = w | b;
+          ++mSize;
+        }
+
+        return;
+      }
+
+      int i = Arrays.binarySearch(mArray, 0, mSize, v);
+
+      if (i >= 0) {
+        return;
+      }
+
+      if (mSize == ARRAY_MAX) {
+        mBits = toBits();
+        mArray = null;
+        add(v);
+        return;
+      }
+
+      i = -i - 1;
+
+      if (mSize == mArray.length) {
+        mArray = Arrays.copyOf(mArray,
+            Math.min(ARRAY_MAX, Math.max(4, mSize * 2)));
+      }
+
+      System.arraycopy(mArray, i, mArray, i + 1, mSize - i);
+      mArray[i] = v;
+      ++mSize;
+    }
+
+    /**
+     * Removes a value.
+     *
+     * @param v the v
+     */
+    public void remove(char v) {
+      if (mBits != null) {
+        long w = mBits[v >>> 6];
+        long b = 1L << v;
+
+        if ((w & b) != 0) {
+          mBits[v >>> 6] = w & ~b;
+          --mSize;
+        }
+
+        return;
+      }
+
+      int i = Arrays.binarySearch(mArray, 0, mSize, v);
+
+      if (i < 0) {
+        return;
+      }
+
+      System.arraycopy(mArray, i + 1, mArray, i, mSize - i - 1);
+      --mSize;
+    }
+
+    /**
+     * Returns the chunk as bits. Bitmap chunks return a copy.
+     *
+     * @return the long[]
+     */
+    public long[] toBits() {
+      if (mBits != null) {
+        return mBits.clone();
+      }
+
+      long[] bits = new long[WORDS];
+
+      for (int i = 0; i < mSize; ++i) {
+        char v = mArray[i];
+        bits[v >>> 6] |= 1L << v;
+      }
+
+      return bits;
+    }
+
+    /**
+     * Copy.
+     *
+     * @return the chunk
+     */
+    public Chunk copy() {
+      Chunk ret = new Chunk();
+
+      if (mBits != null) {
+        ret.mBits = mBits.clone();
+      } else {
+        ret.mArray = Arrays.copyOf(mArray, mSize);
+      }
+
+      ret.mSize = mSize;
+
+      return ret;
+    }
+
+    /**
+     * Write the ids in the chunk into an array.
+     *
+     * @param high the upper 16 bits of the ids.
+     * @param out the out
+     * @param p the position to start writing at.
+     * @return the position after the last id written.
+     */
+    public int toArray(int high, int[] out, int p) {
+      int h = high << 16;
+
+      if (mBits != null) {
+        for (int i = 0; i < WORDS; ++i) {
+          long w = mBits[i];
+
+          while (w != 0) {
+            out[p++] = h | (i << 6) | Long.numberOfTrailingZeros(w);
+            w &= w - 1;
+          }
+        }
+      } else {
+        for (int i = 0; i < mSize; ++i) {
+          out[p++] = h | mArray[i];
+        }
+      }
+
+      return p;
+    }
+
+    /**
+     * Size in bytes.
+     *
+     * @return the long
+     */
+    public long sizeInBytes() {
+      if (mBits != null) {
+        return 8L * WORDS;
+      } else {
+        return 2L * mArray.length;
+      }
+    }
+
+    /**
+     * Create an empty array chunk.
+     *
+     * @return the chunk
+     */
+    public static Chunk create() {
+      Chunk ret = new Chunk();
+      ret.mArray = new char[4];
+      return ret;
+    }
+
+    /**
+     * Create a chunk from an array of values.
+     *
+     * @param values the values
+     * @param size the size
+     * @return the chunk or null if it is empty.
+     */
+    public static Chunk fromArray(char[] values, int size) {
+      if (size == 0) {
+        return null;
+      }
+
+      Chunk ret = new Chunk();
+      ret.mArray = values;
+      ret.mSize = size;
+      return ret;
+    }
+
+    /**
+     * Create a chunk from bits, converting to an array if the chunk is
+     * sparse.
+     *
+     * @param bits the bits
+     * @return the chunk or null if it is empty.
+     */
+    public static Chunk fromBits(long[] bits) {
+      int size = 0;
+
+      for (long w : bits) {
+        size += Long.bitCount(w);
+      }
+
+      if (size == 0) {
+        return null;
+      }
+
+      Chunk ret = new Chunk();
+
+      if (size <= ARRAY_MAX) {
+        ret.mArray = new char[size];
+
+        int p = 0;
+
+        for (int i = 0; i < WORDS; ++i) {
+          long w = bits[i];
+
+          while (w != 0) {
+            ret.mArray[p++] = (char) ((i << 6)
+                | Long.numberOfTrailingZeros(w));
+            w &= w - 1;
+          }
+        }
+      } else {
+        ret.mBits = bits;
+      }
+
+      ret.mSize = size;
+
+      return ret;
+    }
+
+    /**
+     * Intersection of two chunks.
+     *
+     * @param c1 the c 1
+     * @param c2 the c 2
+     * @return the chunk or null if it is empty.
+     */
+    public static Chunk and(Chunk c1, Chunk c2) {
+      if (c1.isBitmap() && c2.isBitmap()) {
+        long[] bits = new long[WORDS];
+
+        for (int i = 0; i < WORDS; ++i) {
+          bits[i] = c1.mBits[i] & c2.mBits[i];
+        }
+
+        return fromBits(bits);
+      }
+
+      if (c1.isBitmap()) {
+        return and(c2, c1);
+      }
+
+      char[] values = new char[Math.min(c1.mSize, c2.mSize)];
+      int n = 0;
+
+      if (c2.isBitmap()) {
+        for (int i = 0; i < c1.mSize; ++i) {
+          if (c2.contains(c1.mArray[i])) {
+            values[n++] = c1.mArray[i];
+          }
+        }
+      } else {
+        int i = 0;
+        int j = 0;
+
+        while (i < c1.mSize && j < c2.mSize) {
+          char v1 = c1.mArray[i];
+          char v2 = c2.mArray[j];
+
+          if (v1 < v2) {
+            ++i;
+          } else if (v1 > v2) {
+            ++j;
+          } else {
+            values[n++] = v1;
+            ++i;
+            ++j;
+          }
+        }
+      }
+
+      return fromArray(values, n);
+    }
+
+    /**
+     * Union of two chunks.
+     *
+     * @param c1 the c 1
+     * @param c2 the c 2
+     * @return the chunk
+     */
+    public static Chunk or(Chunk c1, Chunk c2) {
+      if (!c1.isBitmap() && !c2.isBitmap()
+          && c1.mSize + c2.mSize <= ARRAY_MAX) {
+        char[] values = new char[c1.mSize + c2.mSize];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < c1.mSize && j < c2.mSize) {
+          char v1 = c1.mArray[i];
+          char v2 = c2.mArray[j];
+
+          if (v1 < v2) {
+            values[n++] = v1;
+            ++i;
+          } else if (v1 > v2) {
+            values[n++] = v2;
+            ++j;
+          } else {
+            values[n++] = v1;
+            ++i;
+            ++j;
+          }
+        }
+
+        while (i < c1.mSize) {
+          values[n++] = c1.mArray[i++];
+        }
+
+        while (j < c2.mSize) {
+          values[n++] = c2.mArray[j++];
+        }
+
+        return fromArray(values, n);
+      }
+
+      long[] bits = c1.toBits();
+
+      if (c2.isBitmap()) {
+        for (int i = 0; i < WORDS; ++i) {
+          bits[i] |= c2.mBits[i];
+        }
+      } else {
+        for (int i = 0; i < c2.mSize; ++i) {
+          char v = c2.mArray[i];
+          bits[v >>> 6] |= 1L << v;
+        }
+      }
+
+      return fromBits(bits);
+    }
+
+    /**
+     * The values in the first chunk that are not in the second.
+     *
+     * @param c1 the c 1
+     * @param c2 the c 2
+     * @return the chunk or null if it is empty.
+     */
+    public static Chunk andNot(Chunk c1, Chunk c2) {
+      if (!c1.isBitmap()) {
+        char[] values = new char[c1.mSize];
+        int n = 0;
+
+        for (int i = 0; i < c1.mSize; ++i) {
+          if (!c2.contains(c1.mArray[i])) {
+            values[n++] = c1.mArray[i];
+          }
+        }
+
+        return fromArray(values, n);
+      }
+
+      long[] bits = c1.toBits();
+
+      if (c2.isBitmap()) {
+        for (int i = 0; i < WORDS; ++i) {
+          bits[i] &= ~c2.mBits[i];
+        }
+      } else {
+        for (int i = 0; i < c2.mSize; ++i) {
+          char v = c2.mArray[i];
+          bits[v >>> 6] &= ~(1L << v);
+        }
+      }
+
+      return fromBits(bits);
+    }
+  }
+
+  /**
+   * Read only collection view of a bitmap.
+   */
+  private class View extends AbstractCollection<Integer> {
+
+    /**
+     * Gets the bitmap.
+     *
+     * @return the bitmap
+     */
+    public IdBitmap getBitmap() {
+      return IdBitmap.this;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public Iterator<Integer> iterator() {
+      final int[] ids = IdBitmap.this.toArray();
+
+      return new Iterator<Integer>() {
+        private int mI = 0;
+
+        @Override
+        public boolean hasNext() {
+          return mI < ids.length;
+        }
+
+        @Override
+        public Integer next() {
+          if (mI >= ids.length) {
+            throw new NoSuchElementException();
+          }
+
+          return ids[mI++];
+        }
+      };
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+      return IdBitmap.this.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.util.AbstractCollection#contains(java.lang.Object)
+     */
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof Integer && IdBitmap.this.contains((Integer) o);
+    }
+  }
+
+  /** The upper 16 bits of the ids in each chunk, in ascending order. */
+  private int[] mKeys;
+
+  /** The m chunks. */
+  private Chunk[] mChunks;
+
+  /** The number of chunks in use. */
+  private int mN = 0;
+
+  /**
+   * Instantiates a new empty bitmap.
+   */
+  public IdBitmap() {
+    this(4);
+  }
+
+  /**
+   * Instantiates a new id bitmap.
+   *
+   * @param capacity the initial number of chunks.
+   */
+  private IdBitmap(int capacity) {
+    mKeys = new int[Math.max(1, capacity)];
+    mChunks = new Chunk[mKeys.length];
+  }
+
+  /**
+   * Adds an id.
+   *
+   * @param id the id
+   */
+  public void add(int id) {
+    int high = id >>> 16;
+
+    int i = find(high);
+
+    if (i < 0) {
+      i = -i - 1;
+      insert(i, high, Chunk.create());
+    }
+
+    mChunks[i].add((char) id);
+  }
+
+  /**
+   * Adds ids.
+   *
+   * @param ids the ids
+   */
+  public void addAll(int[] ids) {
+    for (int id : ids) {
+      add(id);
+    }
+  }
+
+  /**
+   * Adds ids.
+   *
+   * @param ids the ids
+   */
+  public void addAll(Collection<Integer> ids) {
+    for (int id : ids) {
+      add(id);
+    }
+  }
+
+  /**
+   * Removes an id.
+   *
+   * @param id the id
+   */
+  public void remove(int id) {
+    int i = find(id >>> 16);
+
+    if (i < 0) {
+      return;
+    }
+
+    Chunk c = mChunks[i];
+
+    c.remove((char) id);
+
+    if (c.mSize == 0) {
+      System.arraycopy(mKeys, i + 1, mKeys, i, mN - i - 1);
+      System.arraycopy(mChunks, i + 1, mChunks, i, mN - i - 1);
+      mChunks[--mN] = null;
+    }
+  }
+
+  /**
+   * Contains.
+   *
+   * @param id the id
+   * @return true, if successful
+   */
+  public boolean contains(int id) {
+    int i = find(id >>> 16);
+
+    return i >= 0 && mChunks[i].contains((char) id);
+  }
+
+  /**
+   * Returns the number of ids in the bitmap.
+   *
+   * @return the int
+   */
+  public int size() {
+    int ret = 0;
+
+    for (int i = 0; i < mN; ++i) {
+      ret += mChunks[i].mSize;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Checks if is empty.
+   *
+   * @return true, if is empty
+   */
+  public boolean isEmpty() {
+    return mN == 0;
+  }
+
+  /**
+   * Returns the ids in the bitmap common to another bitmap.
+   *
+   * @param b the b
+   * @return the id bitmap
+   */
+  public IdBitmap and(IdBitmap b) {
+    IdBitmap ret = new IdBitmap(Math.min(mN, b.mN));
+
+    int i = 0;
+    int j = 0;
+
+    while (i < mN && j < b.mN) {
+      int k1 = mKeys[i];
+      int k2 = b.mKeys[j];
+
+      if (k1 < k2) {
+        ++i;
+      } else if (k1 > k2) {
+        ++j;
+      } else {
+        ret.append(k1, Chunk.and(mChunks[i], b.mChunks[j]));
+        ++i;
+        ++j;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the union of this bitmap and another.
+   *
+   * @param b the b
+   * @return the id bitmap
+   */
+  public IdBitmap or(IdBitmap b) {
+    IdBitmap ret = new IdBitmap(mN + b.mN);
+
+    int i = 0;
+    int j = 0;
+
+    while (i < mN && j < b.mN) {
+      int k1 = mKeys[i];
+      int k2 = b.mKeys[j];
+
+      if (k1 < k2) {
+        ret.append(k1, mChunks[i++].copy());
+      } else if (k1 > k2) {
+        ret.append(k2, b.mChunks[j++].copy());
+      } else {
+        ret.append(k1, Chunk.or(mChunks[i], b.mChunks[j]));
+        ++i;
+        ++j;
+      }
+    }
+
+    while (i < mN) {
+      ret.append(mKeys[i], mChunks[i++].copy());
+    }
+
+    while (j < b.mN) {
+      ret.append(b.mKeys[j], b.mChunks[j++].copy());
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the ids in this bitmap that are not in another.
+   *
+   * @param b the b
+   * @return the id bitmap
+   */
+  public IdBitmap andNot(IdBitmap b) {
+    IdBitmap ret = new IdBitmap(mN);
+
+    int j = 0;
+
+    for (int i = 0; i < mN; ++i) {
+      int k = mKeys[i];
+
+      while (j < b.mN && b.mKeys[j] < k) {
+        ++j;
+      }
+
+      if (j < b.mN && b.mKeys[j] == k) {
+        ret.append(k, Chunk.andNot(mChunks[i], b.mChunks[j]));
+      } else {
+        ret.append(k, mChunks[i].copy());
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns true if this bitmap shares at least one id with another.
+   *
+   * @param b the b
+   * @return true, if successful
+   */
+  public boolean intersects(IdBitmap b) {
+    int i = 0;
+    int j = 0;
+
+    while (i < mN && j < b.mN) {
+      int k1 = mKeys[i];
+      int k2 = b.mKeys[j];
+
+      if (k1 < k2) {
+        ++i;
+      } else if (k1 > k2) {
+        ++j;
+      } else {
+        if (Chunk.and(mChunks[i], b.mChunks[j]) != null) {
+          return true;
+        }
+
+        ++i;
+        ++j;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Copy.
+   *
+   * @return the id bitmap
+   */
+  public IdBitmap copy() {
+    IdBitmap ret = new IdBitmap(mN);
+
+    for (int i = 0; i < mN; ++i) {
+      ret.append(mKeys[i], mChunks[i].copy());
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the ids in ascending order.
+   *
+   * @return the int[]
+   */
+  public int[] toArray() {
+    int[] ret = new int[size()];
+
+    int p = 0;
+
+    for (int i = 0; i < mN; ++i) {
+      p = mChunks[i].toArray(mKeys[i], ret, p);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns a read only collection view of the ids in ascending order so
+   * that bitmaps can be passed to methods expecting a collection.
+   *
+   * @return the collection
+   */
+  public Collection<Integer> asCollection() {
+    return new View();
+  }
+
+  /**
+   * Returns the approximate memory used by the bitmap.
+   *
+   * @return the size in bytes.
+   */
+  public long sizeInBytes() {
+    long ret = 5L * mKeys.length + 32;
+
+    for (int i = 0; i < mN; ++i) {
+      ret += mChunks[i].sizeInBytes() + 16;
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+
+  /**
+   * Find the chunk with the given upper bits.
+   *
+   * @param high the high
+   * @return the index of the chunk, or the insertion point as per
+   *         Arrays.binarySearch().
+   */
+  private int find(int high) {
+    return Arrays.binarySearch(mKeys, 0, mN, high);
+  }
+
+  /**
+   * Insert a chunk at a given index.
+   *
+   * @param i the i
+   * @param high the high
+   * @param chunk the chunk
+   */
+  private void insert(int i, int high, Chunk chunk) {
+    if (mN == mKeys.length) {
+      mKeys = Arrays.copyOf(mKeys, mN * 2);
+      mChunks = Arrays.copyOf(mChunks, mN * 2);
+    }
+
+    System.arraycopy(mKeys, i, mKeys, i + 1, mN - i);
+    System.arraycopy(mChunks, i, mChunks, i + 1, mN - i);
+
+    mKeys[i] = high;
+    mChunks[i] = chunk;
+
+    ++mN;
+  }
+
+  /**
+   * Add a chunk after all existing chunks. Empty chunks are ignored.
+   *
+   * @param high the high
+   * @param chunk the chunk
+   */
+  private void append(int high, Chunk chunk) {
+    if (chunk != null) {
+      insert(mN, high, chunk);
+    }
+  }
+
+  /**
+   * Create a bitmap from ids.
+   *
+   * @param ids the ids
+   * @return the id bitmap
+   */
+  public static IdBitmap of(int... ids) {
+    IdBitmap ret = new IdBitmap();
+
+    ret.addAll(ids);
+
+    return ret;
+  }
+
+  /**
+   * Create a bitmap from ids.
+   *
+   * @param ids the ids
+   * @return the id bitmap
+   */
+  public static IdBitmap of(Collection<Integer> ids) {
+    if (ids instanceof View) {
+      return ((View) ids).getBitmap().copy();
+    }
+
+    IdBitmap ret = new IdBitmap();
+
+    ret.addAll(ids);
+
+    return ret;
+  }
+}
@@ -0,0 +1,738 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * Matches IP addresses against a list of allowed patterns, each mapped to a
+ * value such as a person id. Patterns may be
+ * <ul>
+ * <li>* to match any address</li>
+ * <li>an exact IPv4 or IPv6 address, e.g. 10.0.0.1 or ::1</li>
+ * <li>a CIDR block, e.g. 10.0.0.0/8 or 2001:db8::/32</li>
+ * <li>a prefix of whole IPv4 octets, e.g. 192.168.</li>
+ * </ul>
+ * Any other pattern is treated as a plain string prefix of the address. A
+ * list can instead be created to treat every pattern other than * and CIDR
+ * blocks as a string prefix, so that 10.0.0.1 also matches 10.0.0.12.
+ *
+ * Addresses are held in a binary trie over 128 bits with IPv4 addresses
+ * mapped into ::ffff:0:0/96, so a lookup walks at most 128 nodes regardless
+ * of the number of patterns. String prefixes are held in a character trie.
+ * When several patterns match, the value of the one added first wins. Lists
+ * are not synchronized; they are built once and then only read.
+ *
+ * The login_ip_address table is compiled into a list of all patterns plus
+ * one list per person, which are reloaded after a maximum age. The list of
+ * all patterns picks the person for a password-less login and uses string
+ * prefixes, as validateIpLogin always has. The per-person lists check where
+ * a person may connect from and match whole addresses.
+ *
+ * @author Antony Holmes
+ */
+public class IpAllowList {
+
+  /** Returned when no pattern matches. */
+  public static final int NOT_FOUND = -1;
+
+  /** Matches any address. */
+  public static final String ANY = "*";
+
+  /** The Constant DEFAULT_MAX_AGE_MS. */
+  public static final long DEFAULT_MAX_AGE_MS = 300000;
+
+  /** The prefix of IPv4 addresses mapped into IPv6. */
+  private static final long IPV4_MAPPED = 0x0000ffff00000000L;
+
+  /** The Constant ROOT. */
+  private static final int ROOT = 0;
+
+  /** The compiled login_ip_address table or null if it has not been loaded. */
+  private static final AtomicReference<Table> TABLE = new AtomicReference<Table>();
+
+  /** When the table was loaded. */
+  private static final AtomicLong LOADED = new AtomicLong();
+
+  /** The Constant MAX_AGE. */
+  private static final AtomicLong MAX_AGE = new AtomicLong(
+      DEFAULT_MAX_AGE_MS);
+
+  /**
+   * The allow list of every person and the allow list of each person.
+   */
+  private static class Table {
+
+    /** The m all. */
+    private final IpAllowList mAll = new IpAllowList(true);
+
+    /** The m persons. */
+    private final ConcurrentIdValueStore<IpAllowList> mPersons = new ConcurrentIdValueStore<IpAllowList>();
+
+    /**
+     * Adds a row of login_ip_address.
+     *
+     * @param pattern the pattern
+     * @param personId the person id
+     */
+    public void add(String pattern, int personId) {
+      mAll.add(pattern, personId);
+
+      IpAllowList list = mPersons.get(personId);
+
+      if (list == null) {
+        list = new IpAllowList();
+        mPersons.put(personId, list);
+      }
+
+      list.add(pattern, personId);
+    }
+  }
+
+  /**
+   * A node of the string prefix trie.
+   */
+  private static class PrefixNode {
+
+    /** The m children. */
+    private final Map<Character, PrefixNode> mChildren = new HashMap<Character, PrefixNode>();
+
+    /** The order in which the prefix ending here was added. */
+    private int mOrder = Integer.MAX_VALUE;
+
+    /** The m value. */
+    private int mValue = NOT_FOUND;
+  }
+
+  /** The left child of node i is mChildren[2 * i], the right 2 * i + 1. */
+  private int[] mChildren = new int[64];
+
+  /** The order in which the pattern ending at each node was added. */
+  private int[] mOrder = new int[32];
+
+  /** The value of the pattern ending at each node. */
+  private int[] mValues = new int[32];
+
+  /** The number of nodes. */
+  private int mN = 1;
+
+  /** Patterns matched as string prefixes. */
+  private final PrefixNode mPrefixes = new PrefixNode();
+
+  /** Whether addresses and octet prefixes are matched as string prefixes. */
+  private final boolean mStringPrefixes;
+
+  /** The number of patterns added. */
+  private int mSize = 0;
+
+  /**
+   * Instantiates a new empty allow list.
+   */
+  public IpAllowList() {
+    this(false);
+  }
+
+  /**
+   * Instantiates a new empty allow list.
+   *
+   * @param stringPrefixes true if patterns other than * and CIDR blocks
+   *          should be matched as string prefixes of addresses.
+   */
+  public IpAllowList(boolean stringPrefixes) {
+    mStringPrefixes = stringPrefixes;
+
+    Arrays.fill(mOrder, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Instantiates a new allow list from patterns, each with the value 0.
+   *
+   * @param patterns the patterns
+   */
+  public IpAllowList(String... patterns) {
+    this();
+
+    for (String pattern : patterns) {
+      add(pattern, 0);
+    }
+  }
+
+  /**
+   * Adds a pattern. Patterns that are null or blank are ignored.
+   *
+   * @param pattern the pattern
+   * @param value the value to return for addresses matching the pattern.
+   */
+  public void add(String pattern, int value) {
+    if (pattern == null) {
+      return;
+    }
+
+    pattern = pattern.trim();
+
+    if (pattern.length() == 0) {
+      return;
+    }
+
+    int order = mSize++;
+
+    if (pattern.equals(ANY)) {
+      insert(new long[2], 0, order, value);
+      return;
+    }
+
+    long[] ip = null;
+    int bits = -1;
+
+    int p = pattern.indexOf('/');
+
+    if (p != -1) {
+      // CIDR block
+      String address = pattern.substring(0, p);
+
+      ip = parse(address);
+
+      try {
+        bits = Integer.parseInt(pattern.substring(p + 1));
+      } catch (NumberFormatException e) {
+        ip = null;
+      }
+
+      if (ip != null && address.indexOf(':') == -1) {
+        // IPv4 prefix lengths are relative to the mapped range
+        bits = bits >= 0 && bits <= 32 ? bits + 96 : -1;
+      }
+    } else if (mStringPrefixes) {
+      ip = null;
+    } else if (pattern.endsWith(".")) {
+      // A prefix of whole octets, e.g. 192.168.
+      ip = parseOctets(pattern);
+      bits = 96 + 8 * countOctets(pattern);
+    } else {
+      ip = parse(pattern);
+      bits = 128;
+    }
+
+    if (ip != null && bits >= 0 && bits <= 128) {
+      insert(ip, bits, order, value);
+    } else {
+      insert(pattern, order, value);
+    }
+  }
+
+  /**
+   * Returns the value of the first added pattern matching an address.
+   *
+   * @param ipAddress the ip address
+   * @return the value or NOT_FOUND.
+   */
+  public int match(String ipAddress) {
+    if (ipAddress == null) {
+      return NOT_FOUND;
+    }
+
+    int order = Integer.MAX_VALUE;
+    int ret = NOT_FOUND;
+
+    long[] ip = parse(ipAddress);
+
+    if (ip != null) {
+      int node = ROOT;
+
+      for (int i = 0; i <= 128; ++i) {
+        if (mOrder[node] < order) {
+          order = mOrder[node];
+          ret = mValues[node];
+        }
+
+        if (i == 128) {
+          break;
+        }
+
+        node = mChildren[2 * node + bit(ip, i)];
+
+        if (node == ROOT) {
+          // No longer patterns
+          break;
+        }
+      }
+    }
+
+    PrefixNode node = mPrefixes;
+
+    for (int i = 0; i < ipAddress.length(); ++i) {
+      node = node.mChildren.get(ipAddress.charAt(i));
+
+      if (node == null) {
+        break;
+      }
+
+      if (node.mOrder < order) {
+        order = node.mOrder;
+        ret = node.mValue;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns true if any pattern matches an address.
+   *
+   * @param ipAddress the ip address
+   * @return true, if successful
+   */
+  public boolean matches(String ipAddress) {
+    return match(ipAddress) != NOT_FOUND;
+  }
+
+  /**
+   * Returns the number of patterns.
+   *
+   * @return the int
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Insert the first bits of an address.
+   *
+   * @param ip the ip
+   * @param bits the number of bits.
+   * @param order the order
+   * @param value the value
+   */
+  private void insert(long[] ip, int bits, int order, int value) {
+    int node = ROOT;
+
+    for (int i = 0; i < bits; ++i) {
+      int c = 2 * node + bit(ip, i);
+
+      if (mChildren[c] == ROOT) {
+        int child = newNode();
+
+        mChildren[c] = child;
+      }
+
+      node = mChildren[c];
+    }
+
+    if (order < mOrder[node]) {
+      mOrder[node] = order;
+      mValues[node] = value;
+    }
+  }
+
+  /**
+   * Insert a string prefix.
+   *
+   * @param prefix the prefix
+   * @param order the order
+   * @param value the value
+   */
+  private void insert(String prefix, int order, int value) {
+    PrefixNode node = mPrefixes;
+
+    for (int i = 0; i < prefix.length(); ++i) {
+      char c = prefix.charAt(i);
+
+      PrefixNode child = node.mChildren.get(c);
+
+      if (child == null) {
+        child = new PrefixNode();
+        node.mChildren.put(c, child);
+      }
+
+      node = child;
+    }
+
+    if (order < node.mOrder) {
+      node.mOrder = order;
+      node.mValue = value;
+    }
+  }
+
+  /**
+   * Allocate a node.
+   *
+   * @return the index of the node.
+   */
+  private int newNode() {
+    if (mN == mOrder.length) {
+      mChildren = Arrays.copyOf(mChildren, mChildren.length * 2);
+      mValues = Arrays.copyOf(mValues, mValues.length * 2);
+      mOrder = Arrays.copyOf(mOrder, mOrder.length * 2);
+
+      Arrays.fill(mOrder, mN, mOrder.length, Integer.MAX_VALUE);
+    }
+
+    return mN++;
+  }
+
+  /**
+   * Returns bit i of an address, counting from the most significant.
+   *
+   * @param ip the ip
+   * @param i the i
+   * @return the bit
+   */
+  private static int bit(long[] ip, int i) {
+    long w = i < 64 ? ip[0] : ip[1];
+
+    return (int) ((w >>> (63 - (i & 63))) & 1);
+  }
+
+  /**
+   * Parse an IPv4 or IPv6 address into two longs, mapping IPv4 addresses
+   * into IPv6. Host names are never resolved.
+   *
+   * @param address the address
+   * @return the address or null if it is not an address.
+   */
+  private static long[] parse(String address) {
+    if (address.indexOf(':') == -1) {
+      long ip = parseIPv4(address);
+
+      return ip != -1 ? new long[] { 0, IPV4_MAPPED | ip } : null;
+    }
+
+    // Drop the zone of a link local address
+    int p = address.indexOf('%');
+
+    if (p != -1) {
+      address = address.substring(0, p);
+    }
+
+    for (int i = 0; i < address.length(); ++i) {
+      char c = address.charAt(i);
+
+      if (Character.digit(c, 16) == -1 && c != ':' && c != '.') {
+        return null;
+      }
+    }
+
+    byte[] bytes;
+
+    try {
+      // Only literals reach here so this never does a lookup
+      bytes = InetAddress.getByName(address).getAddress();
+    } catch (UnknownHostException e) {
+      return null;
+    }
+
+    if (bytes.length == 4) {
+      return new long[] { 0, IPV4_MAPPED | toLong(bytes, 0, 4) };
+    }
+
+    return new long[] { toLong(bytes, 0, 8), toLong(bytes, 8, 8) };
+  }
+
+  /**
+   * Parse a dotted quad IPv4 address.
+   *
+   * @param address the address
+   * @return the address or -1 if it is not an IPv4 address.
+   */
+  private static long parseIPv4(String address) {
+    String[] octets = address.split("\\.", -1);
+
+    if (octets.length != 4) {
+      return -1;
+    }
+
+    long ret = 0;
+
+    for (String octet : octets) {
+      int v = parseOctet(octet);
+
+      if (v == -1) {
+        return -1;
+      }
+
+      ret = (ret << 8) | v;
+    }
+
+    return ret;
+  }
+
+  /**
+   * Parse a prefix of whole IPv4 octets such as 192.168. into an address
+   * whose remaining octets are zero.
+   *
+   * @param prefix the prefix
+   * @return the address or null if it is not a prefix of octets.
+   */
+  private static long[] parseOctets(String prefix) {
+    String[] octets = prefix.split("\\.");
+
+    if (octets.length == 0 || octets.length > 3) {
+      return null;
+    }
+
+    long ret = 0;
+
+    for (int i = 0; i < 4; ++i) {
+      int v = 0;
+
+      if (i < octets.length) {
+        v = parseOctet(octets[i]);
+
+        if (v == -1) {
+          return null;
+        }
+      }
+
+      ret = (ret << 8) | v;
+    }
+
+    return new long[] { 0, IPV4_MAPPED | ret };
+  }
+
+  /**
+   * Count the octets in a prefix such as 192.168.
+   *
+   * @param prefix the prefix
+   * @return the number of octets.
+   */
+  private static int countOctets(String prefix) {
+    return prefix.split("\\.").length;
+  }
+
+  /**
+   * Parse an octet.
+   *
+   * @param octet the octet
+   * @return the value or -1 if it is not a decimal number from 0 to 255.
+   */
+  private static int parseOctet(String octet) {
+    if (octet.length() == 0 || octet.length() > 3) {
+      return -1;
+    }
+
+    int ret = 0;
+
+    for (int i = 0; i < octet.length(); ++i) {
+      char c = octet.charAt(i);
+
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+
+      ret = ret * 10 + c - '0';
+    }
+
+    return ret <= 255 ? ret : -1;
+  }
+
+  /**
+   * Read big endian bytes into a long.
+   *
+   * @param bytes the bytes
+   * @param offset the offset
+   * @param n the number of bytes.
+   * @return the long
+   */
+  private static long toLong(byte[] bytes, int offset, int n) {
+    long ret = 0;
+
+    for (int i = 0; i < n; ++i) {
+      ret = (ret << 8) | (bytes[offset + i] & 0xff);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Sets how long the compiled login_ip_address table is used before it is
+   * reloaded.
+   *
+   * @param maxAge the max age in milliseconds.
+   */
+  public static void setMaxAge(long maxAge) {
+    MAX_AGE.set(maxAge);
+  }
+
+  /**
+   * Returns the person whose login_ip_address entries allow them to log in
+   * from an address without a password.
+   *
+   * @param connection the connection
+   * @param ipAddress the ip address
+   * @return the person id or NOT_FOUND.
+   * @throws SQLException the SQL exception
+   */
+  public static int getPerson(Connection connection, String ipAddress)
+      throws SQLException {
+    return getTable(connection).mAll.match(ipAddress);
+  }
+
+  /**
+   * Returns true if a person may connect from an address.
+   *
+   * @param connection the connection
+   * @param personId the person id
+   * @param ipAddress the ip address
+   * @return true, if is allowed
+   * @throws SQLException the SQL exception
+   */
+  public static boolean isAllowed(Connection connection,
+      int personId,
+      String ipAddress) throws SQLException {
+    return isAllowed(getTable(connection), personId, ipAddress);
+  }
+
+  /**
+   * Returns true if a person may connect from an address.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param personId the person id
+   * @param ipAddress the ip address
+   * @return true, if is allowed
+   */
+  public static boolean isAllowed(JdbcTemplate jdbcTemplate,
+      int personId,
+      String ipAddress) {
+    return isAllowed(getTable(jdbcTemplate), personId, ipAddress);
+  }
+
+  /**
+   * Checks if is allowed.
+   *
+   * @param table the table
+   * @param personId the person id
+   * @param ipAddress the ip address
+   * @return true, if is allowed
+   */
+  private static boolean isAllowed(Table table,
+      int personId,
+      String ipAddress) {
+    IpAllowList list = table.mPersons.get(personId);
+
+    return list != null && list.matches(ipAddress);
+  }
+
+  /**
+   * Returns the compiled table, reloading it if necessary.
+   *
+   * @param connection the connection
+   * @return the table
+   * @throws SQLException the SQL exception
+   */
+  private static Table getTable(Connection connection) throws SQLException {
+    Table ret = TABLE.get();
+
+    if (ret == null || isExpired()) {
+      synchronized (TABLE) {
+        ret = TABLE.get();
+
+        if (ret == null || isExpired()) {
+          PreparedStatement statement = connection
+              .prepareStatement(WebAuthentication.LOGIN_IP_SQL);
+
+          try {
+            ResultSet rs = statement.executeQuery();
+
+            try {
+              ret = read(rs);
+            } finally {
+              rs.close();
+            }
+          } finally {
+            statement.close();
+          }
+
+          TABLE.set(ret);
+          LOADED.set(System.currentTimeMillis());
+        }
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the compiled table, reloading it if necessary.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @return the table
+   */
+  private static Table getTable(JdbcTemplate jdbcTemplate) {
+    Table ret = TABLE.get();
+
+    if (ret == null || isExpired()) {
+      synchronized (TABLE) {
+        ret = TABLE.get();
+
+        if (ret == null || isExpired()) {
+          ret = jdbcTemplate.query(WebAuthentication.LOGIN_IP_SQL,
+              new ResultSetExtractor<Table>() {
+                @Override
+                public Table extractData(ResultSet rs)
+                    throws SQLException, DataAccessException {
+                  return read(rs);
+                }
+              });
+
+          TABLE.set(ret);
+          LOADED.set(System.currentTimeMillis());
+        }
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Checks if the table has reached its maximum age.
+   *
+   * @return true, if is expired
+   */
+  private static boolean isExpired() {
+    return System.currentTimeMillis() - LOADED.get() >= MAX_AGE.get();
+  }
+
+  /**
+   * Compile the (ip address, person id) rows of login_ip_address.
+   *
+   * @param rs the rs
+   * @return the table
+   * @throws SQLException the SQL exception
+   */
+  private static Table read(ResultSet rs) throws SQLException {
+    Table ret = new Table();
+
+    while (rs.next()) {
+      ret.add(rs.getString(1), rs.getInt(2));
+    }
+
+    return ret;
+  }
+}
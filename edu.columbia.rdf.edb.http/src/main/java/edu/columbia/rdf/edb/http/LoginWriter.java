@@ -0,0 +1,344 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+/**
+ * Writes login attempts to the database in the background so that logins do
+ * not wait on the insert. Attempts are queued in a bounded queue and a daemon
+ * thread inserts them as JDBC batches, writing a batch once it is full or
+ * once the oldest attempt in it has waited for the flush interval. When the
+ * queue is full, attempts are dropped and counted rather than blocking the
+ * request. The counters can be read while the writer runs from
+ * /auth/login_writer.
+ *
+ * @author Antony Holmes
+ */
+public class LoginWriter implements Runnable {
+
+  /** The Constant DEFAULT_CAPACITY. */
+  public static final int DEFAULT_CAPACITY = 10000;
+
+  /** The Constant DEFAULT_BATCH_SIZE. */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  /** The Constant DEFAULT_FLUSH_MS. */
+  public static final long DEFAULT_FLUSH_MS = 1000;
+
+  /** The running writer or null if attempts are written synchronously. */
+  private static final AtomicReference<LoginWriter> WRITER = new AtomicReference<LoginWriter>();
+
+  /**
+   * A queued login attempt.
+   */
+  private static class Attempt {
+
+    /** The m user id. */
+    private final int mUserId;
+
+    /** The m ip address. */
+    private final String mIpAddress;
+
+    /** The m success. */
+    private final boolean mSuccess;
+
+    /**
+     * Instantiates a new attempt.
+     *
+     * @param userId the user id
+     * @param ipAddress the ip address
+     * @param success the success
+     */
+    public Attempt(int userId, String ipAddress, boolean success) {
+      mUserId = userId;
+      mIpAddress = ipAddress;
+      mSuccess = success;
+    }
+  }
+
+  /** The m ds. */
+  private final DataSource mDs;
+
+  /** The m queue. */
+  private final BlockingQueue<Attempt> mQueue;
+
+  /** The m batch size. */
+  private final int mBatchSize;
+
+  /** The m flush ms. */
+  private final long mFlushMs;
+
+  /** The m thread. */
+  private final Thread mThread;
+
+  /** The m running. */
+  private volatile boolean mRunning = true;
+
+  /** The number of attempts dropped because the queue was full. */
+  private final AtomicLong mDropped = new AtomicLong();
+
+  /** The number of attempts written. */
+  private final AtomicLong mWritten = new AtomicLong();
+
+  /** The number of attempts lost because a batch could not be written. */
+  private final AtomicLong mFailed = new AtomicLong();
+
+  /**
+   * Instantiates a new login writer.
+   *
+   * @param ds the ds
+   * @param capacity the maximum number of queued attempts.
+   * @param batchSize the batch size
+   * @param flushMs the flush interval in milliseconds.
+   */
+  private LoginWriter(DataSource ds, int capacity, int batchSize,
+      long flushMs) {
+    mDs = ds;
+    mQueue = new ArrayBlockingQueue<Attempt>(capacity);
+    mBatchSize = batchSize;
+    mFlushMs = flushMs;
+
+    mThread = new Thread(this, "login-writer");
+    mThread.setDaemon(true);
+  }
+
+  /**
+   * Queue a login attempt.
+   *
+   * @param userId the user id
+   * @param ipAddress the ip address
+   * @param success the success
+   * @return true, if the attempt was queued, false if it was dropped.
+   */
+  public boolean offer(int userId, String ipAddress, boolean success) {
+    if (!mRunning || !mQueue.offer(new Attempt(userId, ipAddress, success))) {
+      mDropped.incrementAndGet();
+
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the number of attempts waiting to be written.
+   *
+   * @return the queue depth
+   */
+  public int getQueueDepth() {
+    return mQueue.size();
+  }
+
+  /**
+   * Returns the number of attempts dropped because the queue was full.
+   *
+   * @return the dropped
+   */
+  public long getDropped() {
+    return mDropped.get();
+  }
+
+  /**
+   * Returns the number of attempts written to the database.
+   *
+   * @return the written
+   */
+  public long getWritten() {
+    return mWritten.get();
+  }
+
+  /**
+   * Returns the number of attempts lost because their batch failed.
+   *
+   * @return the failed
+   */
+  public long getFailed() {
+    return mFailed.get();
+  }
+
+  /*
+   * (non-Javadoc)
+   * 
+   * @see java.lang.Runnable#run()
+   */
+  @Override
+  public void run() {
+    List<Attempt> batch = new ArrayList<Attempt>(mBatchSize);
+
+    // Keep going after a stop until the queue is drained
+    while (mRunning || !mQueue.isEmpty()) {
+      try {
+        Attempt attempt = mQueue.poll(mFlushMs, TimeUnit.MILLISECONDS);
+
+        if (attempt == null) {
+          continue;
+        }
+
+        batch.add(attempt);
+
+        long deadline = System.currentTimeMillis() + mFlushMs;
+
+        while (batch.size() < mBatchSize) {
+          mQueue.drainTo(batch, mBatchSize - batch.size());
+
+          long wait = deadline - System.currentTimeMillis();
+
+          if (batch.size() == mBatchSize || wait <= 0 || !mRunning) {
+            break;
+          }
+
+          attempt = mQueue.poll(wait, TimeUnit.MILLISECONDS);
+
+          if (attempt == null) {
+            break;
+          }
+
+          batch.add(attempt);
+        }
+      } catch (InterruptedException e) {
+        // Stop waiting and write what we have
+        mRunning = false;
+      }
+
+      write(batch);
+
+      batch.clear();
+    }
+  }
+
+  /**
+   * Insert a batch of attempts.
+   *
+   * @param batch the batch
+   */
+  private void write(List<Attempt> batch) {
+    if (batch.size() == 0) {
+      return;
+    }
+
+    try {
+      Connection connection = mDs.getConnection();
+
+      try {
+        PreparedStatement statement = connection
+            .prepareStatement(WebAuthentication.SQL_LOGIN_ATTEMPT);
+
+        try {
+          for (Attempt attempt : batch) {
+            statement.setInt(1, attempt.mUserId);
+            statement.setString(2, attempt.mIpAddress);
+            statement.setBoolean(3, attempt.mSuccess);
+            statement.addBatch();
+          }
+
+          statement.executeBatch();
+        } finally {
+          statement.close();
+        }
+      } finally {
+        connection.close();
+      }
+
+      mWritten.addAndGet(batch.size());
+    } catch (SQLException e) {
+      mFailed.addAndGet(batch.size());
+
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Stop accepting attempts and wait for the queued ones to be written.
+   *
+   * @param timeout the maximum time to wait in milliseconds.
+   * @throws InterruptedException the interrupted exception
+   */
+  private void stop(long timeout) throws InterruptedException {
+    mRunning = false;
+
+    mThread.join(timeout);
+  }
+
+  /**
+   * Start writing login attempts in the background.
+   *
+   * @param ds the ds
+   */
+  public static void start(DataSource ds) {
+    start(ds, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_MS);
+  }
+
+  /**
+   * Start writing login attempts in the background. Does nothing if a writer
+   * is already running.
+   *
+   * @param ds the ds
+   * @param capacity the maximum number of queued attempts.
+   * @param batchSize the batch size
+   * @param flushMs the flush interval in milliseconds.
+   */
+  public static void start(DataSource ds,
+      int capacity,
+      int batchSize,
+      long flushMs) {
+    LoginWriter writer = new LoginWriter(ds, capacity, batchSize, flushMs);
+
+    if (WRITER.compareAndSet(null, writer)) {
+      writer.mThread.start();
+    }
+  }
+
+  /**
+   * Returns the running writer.
+   *
+   * @return the writer or null if attempts are written synchronously.
+   */
+  public static LoginWriter get() {
+    return WRITER.get();
+  }
+
+  /**
+   * Stop the running writer, writing any queued attempts first. Attempts
+   * logged afterwards are written synchronously.
+   *
+   * @param timeout the maximum time to wait in milliseconds.
+   */
+  public static void shutdown(long timeout) {
+    LoginWriter writer = WRITER.getAndSet(null);
+
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      writer.stop(timeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package edu.columbia.rdf.edb.http;
+
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * The counters of the background login attempt writer, as returned by
+ * /auth/login_writer.
+ */
+@JsonPropertyOrder({ "status", "running", "queue_depth", "written", "dropped",
+    "failed" })
+public class LoginWriterBean {
+
+  private AuthStatus mStatus;
+  private boolean mRunning;
+  private int mQueueDepth;
+  private long mWritten;
+  private long mDropped;
+  private long mFailed;
+
+  /**
+   * Instantiates a bean for a request that was not authorized.
+   *
+   * @param status the status
+   */
+  public LoginWriterBean(AuthStatus status) {
+    mStatus = status;
+  }
+
+  /**
+   * Instantiates a new login writer bean.
+   *
+   * @param writer the running writer or null if attempts are written
+   *          synchronously.
+   */
+  public LoginWriterBean(LoginWriter writer) {
+    mStatus = AuthStatus.SUCCESS;
+
+    if (writer != null) {
+      mRunning = true;
+      mQueueDepth = writer.getQueueDepth();
+      mWritten = writer.getWritten();
+      mDropped = writer.getDropped();
+      mFailed = writer.getFailed();
+    }
+  }
+
+  @JsonGetter("status")
+  public AuthStatus getStatus() {
+    return mStatus;
+  }
+
+  @JsonGetter("running")
+  public boolean getRunning() {
+    return mRunning;
+  }
+
+  @JsonGetter("queue_depth")
+  public int getQueueDepth() {
+    return mQueueDepth;
+  }
+
+  @JsonGetter("written")
+  public long getWritten() {
+    return mWritten;
+  }
+
+  @JsonGetter("dropped")
+  public long getDropped() {
+    return mDropped;
+  }
+
+  @JsonGetter("failed")
+  public long getFailed() {
+    return mFailed;
+  }
+}
@@ -60,7 +60,7 @@ public class Persons {
   public static List<PersonBean> getPersons(JdbcTemplate jdbcTemplate,
       Collection<Integer> ids) throws SQLException {
     return Query
-        .asList(jdbcTemplate, PERSON_SQL, PERSON_BEAN_MAPPER, ids);
+        .asBatchList(jdbcTemplate, PERSON_SQL, PERSON_BEAN_MAPPER, ids);
   }
 
   public static List<PersonBean> getPersons(JdbcTemplate jdbcTemplate)
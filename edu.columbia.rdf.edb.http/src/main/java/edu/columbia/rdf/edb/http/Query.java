@@ -15,13 +15,23 @@
  */
 package edu.columbia.rdf.edb.http;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.jebtk.core.collections.CollectionUtils;
 import org.jebtk.core.text.TextUtils;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
 /**
@@ -29,6 +39,12 @@ import org.springframework.jdbc.core.RowMapper;
  */
 public class Query {
 
+  /** The default number of ids bound to each batched query. */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  /** Matches the single "= ?" lookup rewritten by asBatchList(). */
+  private static final Pattern EQUALS_PARAM_PATTERN = Pattern
+      .compile("=\\s*\\?");
 
   /**
    * Instantiates a new query.
@@ -61,6 +77,116 @@ public class Query {
     return ret;
   }
 
+  /**
+   * Load the rows for a collection of ids in batches rather than with one
+   * query per id. The sql must look up a single id with "= ?", for example
+   * "... WHERE samples.id = ?", and the first column of each row must be
+   * that id. The lookup is rewritten to "= ANY(?::int[])" and run once per
+   * batch of ids. The rows are returned in the order of the ids, as if
+   * asList() had been called with each id in turn.
+   *
+   * @param <T> the generic type
+   * @param jdbcTemplate the jdbc template
+   * @param sql the sql
+   * @param rowMapper the row mapper
+   * @param ids the ids
+   * @return the list
+   */
+  public static <T> List<T> asBatchList(JdbcTemplate jdbcTemplate,
+      String sql,
+      RowMapper<T> rowMapper,
+      Collection<Integer> ids) {
+    return asBatchList(jdbcTemplate, sql, rowMapper, ids, DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * Load the rows for a collection of ids in batches rather than with one
+   * query per id.
+   *
+   * @param <T> the generic type
+   * @param jdbcTemplate the jdbc template
+   * @param sql the sql
+   * @param rowMapper the row mapper
+   * @param ids the ids
+   * @param batchSize the maximum number of ids per query.
+   * @return the list
+   * @see #asBatchList(JdbcTemplate, String, RowMapper, Collection)
+   */
+  public static <T> List<T> asBatchList(JdbcTemplate jdbcTemplate,
+      String sql,
+      final RowMapper<T> rowMapper,
+      Collection<Integer> ids,
+      int batchSize) {
+    String batchSql = toBatchSql(sql);
+
+    final Map<Integer, List<T>> rows = new HashMap<Integer, List<T>>();
+
+    RowCallbackHandler handler = new RowCallbackHandler() {
+      private int mRowNum = 0;
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        int id = rs.getInt(1);
+
+        List<T> values = rows.get(id);
+
+        if (values == null) {
+          values = new ArrayList<T>(1);
+          rows.put(id, values);
+        }
+
+        values.add(rowMapper.mapRow(rs, mRowNum++));
+      }
+    };
+
+    // Each id only needs to be fetched once
+    List<Integer> unique = new ArrayList<Integer>(
+        new LinkedHashSet<Integer>(ids));
+
+    for (int i = 0; i < unique.size(); i += batchSize) {
+      final List<Integer> batch = unique.subList(i,
+          Math.min(i + batchSize, unique.size()));
+
+      jdbcTemplate.query(batchSql, new PreparedStatementSetter() {
+        @Override
+        public void setValues(PreparedStatement ps) throws SQLException {
+          ps.setArray(1, Database.createConnArray(ps.getConnection(), batch));
+        }
+      }, handler);
+    }
+
+    List<T> ret = new ArrayList<T>(ids.size());
+
+    for (int id : ids) {
+      List<T> values = rows.get(id);
+
+      if (values != null) {
+        ret.addAll(values);
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Rewrite a query looking up a single id with "= ?" to look up an array
+   * of ids.
+   *
+   * @param sql the sql
+   * @return the sql
+   */
+  private static String toBatchSql(String sql) {
+    Matcher matcher = EQUALS_PARAM_PATTERN.matcher(sql);
+
+    if (sql.indexOf('?') != sql.lastIndexOf('?') || !matcher.find()) {
+      throw new IllegalArgumentException(
+          "Batched queries must have a single \"= ?\" parameter: " + sql);
+    }
+
+    return sql.substring(0, matcher.start()) + "= ANY(?::int[])"
+        + sql.substring(matcher.end());
+  }
+
   /**
    * Return the values of a query taking an arbitrary number of input
    * parameters.
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * One page of samples in (name, id) order along with an opaque token to
+ * request the following page.
+ */
+@JsonPropertyOrder({ "samples", "next" })
+public class SamplePage {
+
+  /** The m samples. */
+  private List<SampleBean> mSamples;
+
+  /** The m next. */
+  private String mNext;
+
+  /**
+   * Instantiates a new sample page.
+   *
+   * @param samples the samples
+   * @param next the token of the next page or null if this is the last page.
+   */
+  public SamplePage(List<SampleBean> samples, String next) {
+    mSamples = samples;
+    mNext = next;
+  }
+
+  /**
+   * Returns the samples of the page in (name, id) order.
+   *
+   * @return the samples
+   */
+  @JsonGetter("samples")
+  public List<SampleBean> getSamples() {
+    return mSamples;
+  }
+
+  /**
+   * Returns the token to pass to get the next page.
+   *
+   * @return the token or null if this is the last page.
+   */
+  @JsonGetter("next")
+  public String getNext() {
+    return mNext;
+  }
+}
@@ -1,9 +1,12 @@
 package edu.columbia.rdf.edb.http;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -13,6 +16,7 @@ import org.jebtk.core.collections.CollectionUtils;
 import org.jebtk.core.text.TextUtils;
 import org.jebtk.database.ResultsSetTable;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
 
 import edu.columbia.rdf.edb.Experiment;
@@ -29,6 +33,46 @@ public class Samples {
   public static final String LIMITED_SAMPLES_SQL = ALL_SAMPLES_SQL
       + " ORDER BY samples.name LIMIT ?";
 
+  /** The largest page that can be requested. */
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+   * Samples are unique by id so pages do not need DISTINCT, which would not
+   * allow ordering on an expression.
+   */
+  private static final String PAGE_SAMPLES_SQL = "SELECT samples.id, samples.experiment_id, samples.expression_type_id, samples.name, samples.organism_id, TO_CHAR(samples.created, 'YYYY-MM-DD') FROM samples";
+
+  /**
+   * Pages are ordered on (name, id) so the order is stable. Samples without
+   * a name sort as the empty string so they are neither skipped nor
+   * repeated.
+   */
+  private static final String PAGE_ORDER_SQL = " ORDER BY COALESCE(samples.name, ''), samples.id LIMIT ?";
+
+  /** Continue after the (name, id) of the last sample of a page. */
+  private static final String PAGE_AFTER_SQL = "(COALESCE(samples.name, ''), samples.id) > (?, ?)";
+
+  public static final String FIRST_PAGE_SQL = PAGE_SAMPLES_SQL
+      + PAGE_ORDER_SQL;
+
+  public static final String NEXT_PAGE_SQL = PAGE_SAMPLES_SQL + " WHERE "
+      + PAGE_AFTER_SQL + PAGE_ORDER_SQL;
+
+  public static final String IDS_FIRST_PAGE_SQL = PAGE_SAMPLES_SQL
+      + " WHERE samples.id = ANY(?::int[])" + PAGE_ORDER_SQL;
+
+  public static final String IDS_NEXT_PAGE_SQL = PAGE_SAMPLES_SQL
+      + " WHERE samples.id = ANY(?::int[]) AND " + PAGE_AFTER_SQL
+      + PAGE_ORDER_SQL;
+
+  public static final RowMapper<SampleBean> SAMPLE_BEAN_MAPPER = new RowMapper<SampleBean>() {
+    @Override
+    public SampleBean mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return new SampleBean(rs.getInt(1), rs.getInt(2), rs.getString(4),
+          rs.getInt(3), rs.getInt(5), rs.getString(6));
+    }
+  };
+
 
   public static final String PERSON_SAMPLES_SQL = SAMPLE_FIELDS
       + " FROM samples, groups_samples_persons WHERE groups_samples_persons.sample_id = samples.id AND groups_samples_persons.person_id = ?";
@@ -137,13 +181,201 @@ public class Samples {
       Collection<Integer> ids,
       int maxCount) throws SQLException {
 
-    List<SampleBean> ret = new ArrayList<SampleBean>(1000);
+    if (maxCount > -1 && ids.size() > maxCount) {
+      // Keep the first samples in (name, id) order so the same samples are
+      // returned however the ids happen to be ordered
+      return getSamplesInOrder(connection, ids, null, maxCount);
+    }
+
+    return Query.asBatchList(connection,
+        Database.SAMPLE_SQL,
+        SAMPLE_BEAN_MAPPER,
+        ids);
+  }
+
+  /**
+   * Return one page of all the samples ordered by name and id.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param token the token from the previous page or null for the first
+   *          page.
+   * @param pageSize the page size, at most MAX_PAGE_SIZE.
+   * @return the sample page
+   */
+  public static SamplePage getSamplesPage(JdbcTemplate jdbcTemplate,
+      String token,
+      int pageSize) {
+    pageSize = checkPageSize(pageSize);
+
+    List<SampleBean> samples;
+
+    // Fetch one extra sample to find out if there is another page
+    if (token == null) {
+      samples = Query.asList(jdbcTemplate,
+          FIRST_PAGE_SQL,
+          SAMPLE_BEAN_MAPPER,
+          pageSize + 1);
+    } else {
+      SampleBean after = decodeToken(token);
+
+      samples = Query.asList(jdbcTemplate,
+          NEXT_PAGE_SQL,
+          SAMPLE_BEAN_MAPPER,
+          after.getName(),
+          after.getId(),
+          pageSize + 1);
+    }
+
+    return toPage(samples, pageSize);
+  }
+
+  /**
+   * Return one page of a set of samples ordered by name and id. Only the
+   * samples in the page are fetched.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param ids the ids
+   * @param token the token from the previous page or null for the first
+   *          page.
+   * @param pageSize the page size, at most MAX_PAGE_SIZE.
+   * @return the sample page
+   */
+  public static SamplePage getSamplesPage(JdbcTemplate jdbcTemplate,
+      final Collection<Integer> ids,
+      String token,
+      int pageSize) {
+    int size = checkPageSize(pageSize);
+
+    if (ids.isEmpty()) {
+      return new SamplePage(new ArrayList<SampleBean>(), null);
+    }
+
+    SampleBean after = token != null ? decodeToken(token) : null;
+
+    // Fetch one extra sample to find out if there is another page
+    List<SampleBean> samples = getSamplesInOrder(jdbcTemplate,
+        ids,
+        after,
+        size + 1);
+
+    return toPage(samples, size);
+  }
+
+  /**
+   * Return at most limit samples of a set ordered by name and id.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param ids the ids
+   * @param after the (name, id) to continue after or null to start from the
+   *          first sample.
+   * @param limit the maximum number of samples.
+   * @return the samples
+   */
+  private static List<SampleBean> getSamplesInOrder(JdbcTemplate jdbcTemplate,
+      final Collection<Integer> ids,
+      final SampleBean after,
+      final int limit) {
+    return jdbcTemplate.query(
+        after != null ? IDS_NEXT_PAGE_SQL : IDS_FIRST_PAGE_SQL,
+        new PreparedStatementSetter() {
+          @Override
+          public void setValues(PreparedStatement ps) throws SQLException {
+            int p = 1;
+
+            ps.setArray(p++, Database.createConnArray(ps.getConnection(), ids));
 
-    for (int id : ids) {
-      ret.addAll(getSampleAsList(connection, id));
+            if (after != null) {
+              ps.setString(p++, after.getName());
+              ps.setInt(p++, after.getId());
+            }
+
+            ps.setInt(p++, limit);
+          }
+        },
+        SAMPLE_BEAN_MAPPER);
+  }
+
+  /**
+   * Check a requested page size.
+   *
+   * @param pageSize the page size
+   * @return the page size capped at MAX_PAGE_SIZE.
+   */
+  private static int checkPageSize(int pageSize) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("Invalid page size.");
+    }
+
+    return Math.min(pageSize, MAX_PAGE_SIZE);
+  }
+
+  /**
+   * Trim the extra sample fetched to detect a following page and create the
+   * token for it.
+   *
+   * @param samples the samples
+   * @param pageSize the page size
+   * @return the sample page
+   */
+  private static SamplePage toPage(List<SampleBean> samples, int pageSize) {
+    if (samples.size() <= pageSize) {
+      return new SamplePage(samples, null);
+    }
+
+    samples = new ArrayList<SampleBean>(samples.subList(0, pageSize));
+
+    return new SamplePage(samples,
+        encodeToken(samples.get(pageSize - 1)));
+  }
+
+  /**
+   * Create a continuation token from the last sample of a page.
+   *
+   * @param sample the sample
+   * @return the token
+   */
+  private static String encodeToken(SampleBean sample) {
+    // Match the COALESCE used to order pages
+    String name = sample.getName() != null ? sample.getName() : "";
+
+    String s = sample.getId() + ":" + name;
+
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decode a continuation token.
+   *
+   * @param token the token
+   * @return a sample bean holding only the id and name of the last sample
+   *         of the previous page.
+   */
+  private static SampleBean decodeToken(String token) {
+    String s;
+
+    try {
+      s = new String(Base64.getUrlDecoder().decode(token),
+          StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid page token.");
     }
 
-    return ret;
+    int i = s.indexOf(':');
+
+    if (i < 1) {
+      throw new IllegalArgumentException("Invalid page token.");
+    }
+
+    int id;
+
+    try {
+      id = Integer.parseInt(s.substring(0, i));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid page token.");
+    }
+
+    return new SampleBean(id, -1, s.substring(i + 1), -1, -1, null);
   }
 
   /**
@@ -177,15 +409,7 @@ public class Samples {
       final JdbcTemplate jdbcTemplate,
       final int id) throws SQLException {
     return Query
-        .asList(jdbcTemplate, Database.SAMPLE_SQL, new RowMapper<SampleBean>() {
-          @Override
-          public SampleBean mapRow(ResultSet rs, int rowNum) throws SQLException {
-
-            return new SampleBean(rs.getInt(1), rs.getInt(2), rs.getString(4),
-                rs.getInt(3), rs.getInt(5), rs.getString(6));
-
-          }
-        }, id);
+        .asList(jdbcTemplate, Database.SAMPLE_SQL, SAMPLE_BEAN_MAPPER, id);
   }
 
   public static SampleBean getSample(final JdbcTemplate jdbcTemplate,
@@ -247,6 +471,8 @@ public class Samples {
   }
 
   public static List<GeoBean> getGeo(final JdbcTemplate jdbcTemplate, int sid) {
+    Geo.load(jdbcTemplate);
+
     return Query.asList(jdbcTemplate, SAMPLE_GEO_SQL, new RowMapper<GeoBean>() {
       @Override
       public GeoBean mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -254,8 +480,8 @@ public class Samples {
         int seriesId = rs.getInt(3);
         int platformId = rs.getInt(4);
 
-        return new GeoBean(rs.getInt(1), Geo.getSeries(jdbcTemplate, seriesId),
-            rs.getString(2), Geo.getPlatform(jdbcTemplate, platformId));
+        return new GeoBean(rs.getInt(1), Geo.getSeries(seriesId),
+            rs.getString(2), Geo.getPlatform(platformId));
       }
     }, sid);
   }
@@ -19,30 +19,84 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayDeque;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.jebtk.core.collections.CollectionUtils;
 import org.jebtk.core.search.SearchStackElement;
 import org.jebtk.database.JDBCConnection;
 import org.jebtk.database.ResultsSetTable;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 
 /**
  * The Class Search.
  */
 public class Search {
 
-  /** The Constant KEYWORD_SQL. */
-  private static final String KEYWORD_SQL = "SELECT DISTINCT keywords.id FROM keywords WHERE keywords.name LIKE ?";
+  /** The Constant KEYWORDS_SQL. */
+  static final String KEYWORDS_SQL = "SELECT keywords.id, keywords.name FROM keywords";
 
-  /** The Constant KEYWORD_NOT_SQL. */
-  private static final String KEYWORD_NOT_SQL = "SELECT DISTINCT keywords.id FROM keywords WHERE keywords.name NOT LIKE ?";
+  /**
+   * Dictionary of keywords so that prefix lookups do not need a LIKE query.
+   * Loaded on first use and shared with SearchIndex.
+   */
+  static final ConcurrentValueIdStore KEYWORDS = new ConcurrentValueIdStore();
+
+  /** The Constant KEYWORD_COUNTS_SQL. */
+  private static final String KEYWORD_COUNTS_SQL = "SELECT tags_keywords_search.keyword_id, COUNT(tags_samples_search.sample_id) FROM tags_samples_search, tags_keywords_search WHERE tags_samples_search.tag_keyword_search_id = tags_keywords_search.id GROUP BY tags_keywords_search.keyword_id";
+
+  /**
+   * The number of samples indexed with each keyword, used to estimate the
+   * cost of search terms. Loaded on first use.
+   */
+  private static final ConcurrentIdIdStore KEYWORD_COUNTS = new ConcurrentIdIdStore();
+
+  /** The Constant MAX_CACHED_RESULTS. */
+  private static final int MAX_CACHED_RESULTS = 1000;
+
+  /**
+   * Recent search results keyed on the tag and normalized search. Cleared
+   * when the database version changes.
+   */
+  private static final ConcurrentKeyValueStore<String, IdBitmap> RESULTS = new ConcurrentKeyValueStore<String, IdBitmap>(
+      MAX_CACHED_RESULTS, ConcurrentKeyValueStore.EvictionPolicy.LRU);
+
+  /** The Constant MAX_CACHED_TERMS_BYTES. */
+  private static final long MAX_CACHED_TERMS_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * The samples matching individual search terms, keyed on the tag and term,
+   * so that searches sharing terms only query the database for the terms
+   * that are not cached. Bounded by the memory used by the bitmaps.
+   */
+  private static final ConcurrentKeyValueStore<String, IdBitmap> TERMS = new ConcurrentKeyValueStore<String, IdBitmap>(
+      new ConcurrentKeyValueStore.Weigher<IdBitmap>() {
+        @Override
+        public long weigh(IdBitmap ids) {
+          return ids.sizeInBytes();
+        }
+      }, MAX_CACHED_TERMS_BYTES);
+
+  static {
+    DataVersion.register(KEYWORDS);
+    DataVersion.register(TERMS);
+    DataVersion.register(KEYWORD_COUNTS);
+    DataVersion.register(RESULTS);
+    DataVersion.register(new ConcurrentStore() {
+      @Override
+      public void clear() {
+        SearchIndex.clear();
+      }
+    });
+  }
+
+  /** How searches are run when the search index is not enabled. */
+  private static final AtomicReference<SearchMode> MODE = new AtomicReference<SearchMode>(
+      SearchMode.PLANNED);
 
   // private static final String TAG_KEYWORD_SQL =
   // "SELECT DISTINCT search_fields_keywords.id FROM search_fields_keywords
@@ -81,6 +135,13 @@ public class Search {
   private static final String SAMPLE_KEYWORD_SEARCH_SQL = SAMPLE_KEYWORD_SEARCH_CORE_SQL
       + "LIKE ?";
 
+  /** The Constant SAMPLE_FILTER_SQL. */
+  private static final String SAMPLE_FILTER_SQL = " AND tags_samples_search.sample_id = ANY(?::int[])";
+
+  /** The Constant SAMPLE_KEYWORD_SEARCH_FILTER_SQL. */
+  private static final String SAMPLE_KEYWORD_SEARCH_FILTER_SQL = SAMPLE_KEYWORD_SEARCH_SQL
+      + SAMPLE_FILTER_SQL;
+
   /** The Constant SAMPLE_KEYWORD_SEARCH_NOT_SQL. */
   // private static final String SAMPLE_KEYWORD_SEARCH_NOT_SQL =
   // SAMPLE_KEYWORD_SEARCH_CORE_SQL + "NOT LIKE ?";
@@ -93,6 +154,10 @@ public class Search {
   private static final String SAMPLE_KEYWORD_EXACT_SEARCH_SQL = SAMPLE_KEYWORD_EXACT_SEARCH_CORE_SQL
       + "= ?";
 
+  /** The Constant SAMPLE_KEYWORD_EXACT_SEARCH_FILTER_SQL. */
+  private static final String SAMPLE_KEYWORD_EXACT_SEARCH_FILTER_SQL = SAMPLE_KEYWORD_EXACT_SEARCH_SQL
+      + SAMPLE_FILTER_SQL;
+
   /** The Constant SAMPLE_KEYWORD_EXACT_SEARCH_NOT_SQL. */
   // private static final String SAMPLE_KEYWORD_EXACT_SEARCH_NOT_SQL =
   // SAMPLE_KEYWORD_EXACT_SEARCH_CORE_SQL + "!= ?";
@@ -144,62 +209,35 @@ public class Search {
       return Samples.getSamplesTable(connection, ids, maxCount);
     }
 
-    // SearchStackElement e = null;
-
-    Deque<SearchResults> tempStack = new ArrayDeque<SearchResults>();
+    DataVersion.check(connection);
 
-    // while (!searchStack.isEmpty()) {
-    // e = searchStack.pop();
+    SearchPlan plan = SearchPlan.parse(searchQueue);
 
-    for (SearchStackElement e : searchQueue) {
-      switch (e.mOp) {
-      case MATCH:
-        // First get a list of keywords matching the search
-        // List<Integer> keywordIds = getKeywordIds(connection, e.mText);
+    // The sample ids do not depend on max count so it is not part of the key
+    String key = tagId + ":" + plan;
 
-        // Now see if the tag of interest contains those keyword ids
-        // List<Integer> tagKeywordIds =
-        // getTagKeywordIds(connection, tagId, keywordIds);
+    IdBitmap samples = RESULTS.get(key);
 
-        String keyword = e.mText;
+    if (samples == null) {
+      // Evaluate terms against the in memory index when it is enabled
+      SearchIndex index = SearchIndex.get(connection);
 
-        boolean include = include(keyword);
-
-        // Get all samples matched to those keywords for the tag.
-        tempStack.push(new SearchResults(
-            getSampleIds(connection, tagId, e.mText, include), include)); // tagKeywordIds);
-                                                                          // //getSampleIds(connection,
-                                                                          // tagKeywordIds));
-
-        break;
-      case AND:
-        tempStack.push(and(tempStack.pop(), tempStack.pop()));
-        break;
-      case OR:
-        tempStack.push(or(tempStack.pop(), tempStack.pop()));
-        break;
-      default:
-        break;
+      if (index != null) {
+        samples = plan.evaluate(index, tagId);
+      } else if (MODE.get() == SearchMode.SQL) {
+        samples = getSampleIds(connection, tagId, plan);
+      } else {
+        samples = plan.evaluate(
+            new CachedTermSource(new ConnectionTermSource(connection)),
+            tagId);
       }
-    }
-
-    // The result will be left on the tempStack
-
-    // List<Integer> sampleIds = getSampleIds(connection, tempStack.pop());
-
-    SearchResults results = tempStack.pop();
-
-    Collection<Integer> samples;
 
-    if (results.getInclude()) {
-      samples = results.getValues();
-    } else {
-      samples = Collections.emptySet();
+      RESULTS.put(key, samples);
     }
 
-    return Samples.getSamplesTable(connection, samples, maxCount); // Database.getSamplesTable(connection,
-                                                                   // sampleIds,
-                                                                   // maxCount);
+    return Samples.getSamplesTable(connection,
+        samples.asCollection(),
+        maxCount);
   }
 
   public static List<SampleBean> searchSamples(JdbcTemplate jdbcTemplate,
@@ -215,112 +253,81 @@ public class Search {
       return Samples.getSamples(jdbcTemplate);
     }
 
-    // SearchStackElement e = null;
-
-    Deque<SearchResults> tempStack = new ArrayDeque<SearchResults>();
-
-    // while (!searchStack.isEmpty()) {
-    // e = searchStack.pop();
-
-    for (SearchStackElement e : searchQueue) {
-      switch (e.mOp) {
-      case MATCH:
-        // First get a list of keywords matching the search
-        // List<Integer> keywordIds = getKeywordIds(connection, e.mText);
-
-        // Now see if the tag of interest contains those keyword ids
-        // List<Integer> tagKeywordIds =
-        // getTagKeywordIds(connection, tagId, keywordIds);
-
-        String keyword = e.mText;
-
-        boolean include = include(keyword);
-
-        // Get all samples matched to those keywords for the tag.
-        tempStack.push(new SearchResults(
-            getSampleIds(jdbcTemplate, tagId, e.mText, include), include)); // tagKeywordIds);
-                                                                            // //getSampleIds(connection,
-                                                                            // tagKeywordIds));
-
-        break;
-      case AND:
-        tempStack.push(and(tempStack.pop(), tempStack.pop()));
-        break;
-      case OR:
-        tempStack.push(or(tempStack.pop(), tempStack.pop()));
-        break;
-      default:
-        break;
-      }
-    }
-
-    // The result will be left on the tempStack
-
-    // List<Integer> sampleIds = getSampleIds(connection, tempStack.pop());
-
-    SearchResults results = tempStack.pop();
+    IdBitmap samples = searchSampleIds(jdbcTemplate, tagId, searchQueue);
 
-    Collection<Integer> samples;
-
-    if (results.getInclude()) {
-      samples = results.getValues();
-    } else {
-      samples = Collections.emptySet();
-    }
-
-    return Samples.getSamples(jdbcTemplate, samples, maxCount); // Database.getSamplesTable(connection,
-                                                                // sampleIds,
-                                                                // maxCount);
+    return Samples.getSamples(jdbcTemplate, samples.asCollection(), maxCount);
   }
 
   /**
-   * Performs an intersection of two sets of samples. If either of the results
-   * sets are non-inclusive (find samples without word) we return the compliment
-   * of the inclusive set to the non-inclusive, i.e. exclude whatever is in the
-   * non-inclusive.
-   * 
+   * Search for samples returning one page of results ordered by sample name.
+   * Only the samples in the page are fetched.
    *
-   * @param sr1 Results 1.
-   * @param sr2 Results 2.
-   * @return The intersection of results 1 and results 2.
+   * @param jdbcTemplate the jdbc template
+   * @param tagId the tag id
+   * @param searchQueue the search queue
+   * @param token the token returned with the previous page or null for the
+   *          first page.
+   * @param pageSize the page size
+   * @return the sample page
+   * @throws SQLException the SQL exception
    */
-  private static SearchResults and(SearchResults sr1, SearchResults sr2) {
-    if (!sr1.getInclude() && !sr2.getInclude()) {
-      // Return nothing
-      return new SearchResults();
-    } else if (!sr1.getInclude() && sr2.getInclude()) {
-      return new SearchResults(
-          CollectionUtils.notIn(sr2.getValues(), sr1.getValues()));
-    } else if (sr1.getInclude() && !sr2.getInclude()) {
-      return new SearchResults(
-          CollectionUtils.notIn(sr1.getValues(), sr2.getValues()));
-    } else {
-      // Normal
-      return new SearchResults(
-          CollectionUtils.intersect(sr1.getValues(), sr2.getValues()));
+  public static SamplePage searchSamples(JdbcTemplate jdbcTemplate,
+      int tagId,
+      List<SearchStackElement> searchQueue,
+      String token,
+      int pageSize) throws SQLException {
+
+    if (searchQueue.size() == 0) {
+      return Samples.getSamplesPage(jdbcTemplate, token, pageSize);
     }
+
+    IdBitmap samples = searchSampleIds(jdbcTemplate, tagId, searchQueue);
+
+    return Samples.getSamplesPage(jdbcTemplate,
+        samples.asCollection(),
+        token,
+        pageSize);
   }
 
   /**
-   * Perform a union operation on two sets of samples. If either of the results
-   * sets are non-inclusive (find samples without word) we simply return the
-   * other set.
+   * Find the ids of the samples matching a search.
    *
-   * @param sr1 the sr 1
-   * @param sr2 the sr 2
-   * @return The union of two results.
+   * @param jdbcTemplate the jdbc template
+   * @param tagId the tag id
+   * @param searchQueue the search queue
+   * @return the sample ids
+   * @throws SQLException the SQL exception
    */
-  private static SearchResults or(SearchResults sr1, SearchResults sr2) {
+  private static IdBitmap searchSampleIds(JdbcTemplate jdbcTemplate,
+      int tagId,
+      List<SearchStackElement> searchQueue) throws SQLException {
+    DataVersion.check(jdbcTemplate);
 
-    if (!sr1.getInclude() && sr2.getInclude()) {
-      return sr2;
-    } else if (sr1.getInclude() && !sr2.getInclude()) {
-      return sr1;
-    } else {
-      // Normal
-      return new SearchResults(
-          CollectionUtils.union(sr1.getValues(), sr2.getValues()));
+    SearchPlan plan = SearchPlan.parse(searchQueue);
+
+    // The sample ids do not depend on max count so it is not part of the key
+    String key = tagId + ":" + plan;
+
+    IdBitmap samples = RESULTS.get(key);
+
+    if (samples == null) {
+      // Evaluate terms against the in memory index when it is enabled
+      SearchIndex index = SearchIndex.get(jdbcTemplate);
+
+      if (index != null) {
+        samples = plan.evaluate(index, tagId);
+      } else if (MODE.get() == SearchMode.SQL) {
+        samples = getSampleIds(jdbcTemplate, tagId, plan);
+      } else {
+        samples = plan.evaluate(
+            new CachedTermSource(new JdbcTermSource(jdbcTemplate)),
+            tagId);
+      }
+
+      RESULTS.put(key, samples);
     }
+
+    return samples;
   }
 
   /*
@@ -365,109 +372,131 @@ public class Search {
   }
 
   /**
-   * Find all the samples matching keywords associated with a particular tag.
-   * Words beginning with '-' will find samples not containg the word or prefix
-   * (similar to a google search).
+   * Find the samples matching a search with a single query.
    *
    * @param connection the connection
    * @param tagId the tag id
-   * @param keyword the keyword
-   * @param include the include
+   * @param plan the plan
    * @return the sample ids
    * @throws SQLException the SQL exception
    */
-  private static Set<Integer> getSampleIds(Connection connection,
+  private static IdBitmap getSampleIds(Connection connection,
       int tagId,
-      String keyword,
-      boolean include) throws SQLException {
-
-    boolean exact = quoted(keyword);
-
-    if (exact) {
-      // Strip quotation marks
-      keyword = keyword.substring(1, keyword.length() - 1);
-    }
+      SearchPlan plan) throws SQLException {
+    IdBitmapHandler handler = new IdBitmapHandler();
 
-    if (!include) {
-      // Strip dash at beginning
-      keyword = keyword.substring(1);
+    if (plan.isEmpty()) {
+      return handler.getIds();
     }
 
-    // System.err.println("keyword3 " + keyword + " " + exact + " " + include);
+    List<SearchTerm> terms = new ArrayList<SearchTerm>();
 
-    if (exact) {
-      // Match on the tag value for the sample. This is not quite
-      // exact but is designed for cases where a word in the value
-      // should be included or excluded.
+    PreparedStatement statement = connection
+        .prepareStatement(getSql(plan, terms));
 
-      // System.err.println("keyword4 " + SAMPLE_KEYWORD_EXACT_SEARCH_SQL + " "
-      // +
-      // tagId + " " + keyword);
+    try {
+      int p = 1;
 
-      return getIds(connection,
-          SAMPLE_KEYWORD_EXACT_SEARCH_SQL,
-          tagId,
-          keyword);
-    } else {
-      // In the non-exact match we match on indexed keywords. Note
-      // that this can make excluding samples difficult since if they
-      // are indexed on multiple keywords, -keyword, will eliminate
-      // matches based on the keyword, but keep all others making this
-      // function effectively useless
+      for (SearchTerm term : terms) {
+        statement.setInt(p++, tagId);
+        statement.setString(p++, getPattern(term));
+      }
 
-      // System.err.println("keyword5 " + SAMPLE_KEYWORD_SEARCH_SQL + " " +
-      // tagId + "
-      // " + keyword);
+      ResultSet rs = statement.executeQuery();
 
-      return getIds(connection, SAMPLE_KEYWORD_SEARCH_SQL, tagId, keyword);
+      try {
+        while (rs.next()) {
+          handler.processRow(rs);
+        }
+      } finally {
+        rs.close();
+      }
+    } finally {
+      statement.close();
     }
+
+    return handler.getIds();
   }
 
-  private static List<Integer> getSampleIds(JdbcTemplate connection,
+  /**
+   * Find the samples matching a search with a single query.
+   *
+   * @param connection the connection
+   * @param tagId the tag id
+   * @param plan the plan
+   * @return the sample ids
+   */
+  private static IdBitmap getSampleIds(JdbcTemplate connection,
       int tagId,
-      String keyword,
-      boolean include) throws SQLException {
+      SearchPlan plan) {
+    IdBitmapHandler handler = new IdBitmapHandler();
 
-    boolean quoted = quoted(keyword);
-
-    if (quoted) {
-      // Strip quotation marks
-      keyword = keyword.substring(1, keyword.length() - 1);
+    if (plan.isEmpty()) {
+      return handler.getIds();
     }
 
-    if (!include) {
-      // Strip dash at beginning
-      keyword = keyword.substring(1);
+    List<SearchTerm> terms = new ArrayList<SearchTerm>();
+
+    String sql = getSql(plan, terms);
+
+    Object[] params = new Object[terms.size() * 2];
+
+    for (int i = 0; i < terms.size(); ++i) {
+      params[2 * i] = tagId;
+      params[2 * i + 1] = getPattern(terms.get(i));
     }
 
-    // System.err.println("keyword3 " + keyword + " " + exact + " " + include);
+    connection.query(sql, params, handler);
 
-    if (quoted) {
-      // Match on the tag value for the sample. This is not quite
-      // exact but is designed for cases where a word in the value
-      // should be included or excluded.
+    return handler.getIds();
+  }
 
-      // System.err.println("keyword4 " + SAMPLE_KEYWORD_EXACT_SEARCH_SQL + " "
-      // +
-      // tagId + " " + keyword);
+  /**
+   * Compile a search into a single statement. Each term becomes a common
+   * table expression and the plan combines them with INTERSECT, UNION and
+   * EXCEPT so the database only returns the final samples. Each term takes
+   * a tag id and keyword parameter, in the order they are added to terms.
+   *
+   * @param plan the plan
+   * @param terms the terms in the statement.
+   * @return the sql
+   */
+  private static String getSql(SearchPlan plan, List<SearchTerm> terms) {
+    String expression = plan.toSql(terms);
 
-      return getIds(connection,
-          SAMPLE_KEYWORD_EXACT_SEARCH_SQL,
-          tagId,
-          keyword);
-    } else {
-      // In the non-exact match we match on indexed keywords. Note
-      // that this can make excluding samples difficult since if they
-      // are indexed on multiple keywords, -keyword, will eliminate
-      // matches based on the keyword, but keep all others making this
-      // function effectively useless
+    StringBuilder buffer = new StringBuilder("WITH ");
 
-      // System.err.println("keyword5 " + SAMPLE_KEYWORD_SEARCH_SQL + " " +
-      // tagId + "
-      // " + keyword);
+    for (int i = 0; i < terms.size(); ++i) {
+      if (i > 0) {
+        buffer.append(", ");
+      }
 
-      return getIds(connection, SAMPLE_KEYWORD_SEARCH_SQL, tagId, keyword);
+      buffer.append(SearchPlan.TABLE_PREFIX).append(i).append(" AS (")
+          .append(getSql(terms.get(i), false)).append(')');
     }
+
+    buffer.append(" SELECT results.sample_id FROM ").append(expression)
+        .append(" AS results");
+
+    return buffer.toString();
+  }
+
+  /**
+   * Gets the search mode.
+   *
+   * @return the mode
+   */
+  public static SearchMode getMode() {
+    return MODE.get();
+  }
+
+  /**
+   * Sets how searches are run when the search index is not enabled.
+   *
+   * @param mode the new mode
+   */
+  public static void setMode(SearchMode mode) {
+    MODE.set(mode);
   }
 
   /**
@@ -572,32 +601,304 @@ public class Search {
   public static List<Integer> getKeywordIds(Connection connection,
       String keyword,
       boolean include) throws SQLException {
-    return Database
-        .getIds(connection, include ? KEYWORD_SQL : KEYWORD_NOT_SQL, keyword);
+    KEYWORDS.ensureLoaded(connection, KEYWORDS_SQL);
+
+    int[] ids = include ? KEYWORDS.getPrefix(keyword)
+        : KEYWORDS.getNotPrefix(keyword);
+
+    List<Integer> ret = new ArrayList<Integer>(ids.length);
+
+    for (int id : ids) {
+      ret.add(id);
+    }
+
+    return ret;
   }
 
   /**
-   * Returns true if the string is in quotations.
+   * Estimate the number of samples matching a term from the number of
+   * samples indexed with each keyword it matches, ignoring the tag.
    *
-   * @param keyword the keyword
-   * @return true, if successful
+   * @param term the term
+   * @return the estimate
    */
-  private static boolean quoted(String keyword) {
-    return keyword.charAt(0) == '"';
+  private static long estimate(SearchTerm term) {
+    long ret = 0;
+
+    for (int keywordId : KEYWORDS.getPrefix(term.getText())) {
+      int count = KEYWORD_COUNTS.get(keywordId);
+
+      if (count != ConcurrentIdIdStore.NOT_FOUND) {
+        ret += count;
+      }
+    }
+
+    return ret;
   }
 
   /**
-   * Returns true if the word does not start with a dash '-'. A dash
-   * representations negation of the statement.
+   * Returns the sql to find the samples matching a term.
    *
-   * @param keyword the keyword
-   * @return true, if successful
+   * @param term the term
+   * @param filter whether the query should be restricted to a list of
+   *          samples.
+   * @return the sql
    */
-  private static boolean include(String keyword) {
-    if (quoted(keyword)) {
-      return keyword.charAt(1) != '-';
+  private static String getSql(SearchTerm term, boolean filter) {
+    if (term.isQuoted()) {
+      // Match on the tag value for the sample. This is not quite
+      // exact but is designed for cases where a word in the value
+      // should be included or excluded.
+      return filter ? SAMPLE_KEYWORD_EXACT_SEARCH_FILTER_SQL
+          : SAMPLE_KEYWORD_EXACT_SEARCH_SQL;
     } else {
-      return keyword.charAt(0) != '-';
+      // In the non-exact match we match on indexed keywords. Note
+      // that this can make excluding samples difficult since if they
+      // are indexed on multiple keywords, -keyword, will eliminate
+      // matches based on the keyword, but keep all others making this
+      // function effectively useless
+      return filter ? SAMPLE_KEYWORD_SEARCH_FILTER_SQL
+          : SAMPLE_KEYWORD_SEARCH_SQL;
+    }
+  }
+
+  /**
+   * Returns the value to bind to the keyword parameter of the sql for a
+   * term.
+   *
+   * @param term the term
+   * @return the string
+   */
+  private static String getPattern(SearchTerm term) {
+    return term.isQuoted() ? term.getText() : term.getText() + "%";
+  }
+
+  /**
+   * Adds the ids in the first column of each row to a bitmap.
+   */
+  private static class IdBitmapHandler implements RowCallbackHandler {
+
+    /** The m ids. */
+    private final IdBitmap mIds = new IdBitmap();
+
+    @Override
+    public void processRow(ResultSet rs) throws SQLException {
+      mIds.add(rs.getInt(1));
+    }
+
+    /**
+     * Gets the ids.
+     *
+     * @return the ids
+     */
+    public IdBitmap getIds() {
+      return mIds;
+    }
+  }
+
+  /**
+   * Caches the samples matching terms looked up in another source. Terms
+   * that are not cached are looked up in full so that they can be cached,
+   * unless only a filtered set of samples is required.
+   */
+  private static class CachedTermSource implements SearchTermSource {
+
+    /** The m source. */
+    private final SearchTermSource mSource;
+
+    /**
+     * Instantiates a new cached term source.
+     *
+     * @param source the source
+     */
+    public CachedTermSource(SearchTermSource source) {
+      mSource = source;
+    }
+
+    @Override
+    public long estimate(int tagId, SearchTerm term) throws SQLException {
+      IdBitmap ids = TERMS.get(getKey(tagId, term));
+
+      if (ids != null) {
+        return ids.size();
+      }
+
+      return mSource.estimate(tagId, term);
+    }
+
+    @Override
+    public IdBitmap match(int tagId, SearchTerm term) throws SQLException {
+      String key = getKey(tagId, term);
+
+      IdBitmap ret = TERMS.get(key);
+
+      if (ret == null) {
+        ret = mSource.match(tagId, term);
+
+        TERMS.put(key, ret);
+      }
+
+      return ret;
+    }
+
+    @Override
+    public IdBitmap filter(int tagId, SearchTerm term, IdBitmap ids)
+        throws SQLException {
+      IdBitmap ret = TERMS.get(getKey(tagId, term));
+
+      if (ret != null) {
+        return ret.and(ids);
+      }
+
+      return mSource.filter(tagId, term, ids);
+    }
+
+    /**
+     * Returns the cache key of a term. Whether the term is excluded is not
+     * part of the key since the samples matching the term are the same
+     * either way.
+     *
+     * @param tagId the tag id
+     * @param term the term
+     * @return the key
+     */
+    private static String getKey(int tagId, SearchTerm term) {
+      return tagId + ":" + term.isQuoted() + ":" + term.getText();
+    }
+  }
+
+  /**
+   * Looks up search terms in the database using a connection.
+   */
+  private static class ConnectionTermSource implements SearchTermSource {
+
+    /** The m connection. */
+    private final Connection mConnection;
+
+    /**
+     * Instantiates a new connection term source.
+     *
+     * @param connection the connection
+     */
+    public ConnectionTermSource(Connection connection) {
+      mConnection = connection;
+    }
+
+    @Override
+    public long estimate(int tagId, SearchTerm term) throws SQLException {
+      KEYWORDS.ensureLoaded(mConnection, KEYWORDS_SQL);
+      KEYWORD_COUNTS.ensureLoaded(mConnection, KEYWORD_COUNTS_SQL);
+
+      return Search.estimate(term);
+    }
+
+    @Override
+    public IdBitmap match(int tagId, SearchTerm term) throws SQLException {
+      return query(tagId, term, null);
+    }
+
+    @Override
+    public IdBitmap filter(int tagId, SearchTerm term, IdBitmap ids)
+        throws SQLException {
+      return query(tagId, term, ids);
+    }
+
+    /**
+     * Find the samples matching a term.
+     *
+     * @param tagId the tag id
+     * @param term the term
+     * @param ids if not null, restrict the search to these samples.
+     * @return the samples
+     * @throws SQLException the SQL exception
+     */
+    private IdBitmap query(int tagId, SearchTerm term, IdBitmap ids)
+        throws SQLException {
+      IdBitmapHandler handler = new IdBitmapHandler();
+
+      PreparedStatement statement = mConnection
+          .prepareStatement(getSql(term, ids != null));
+
+      try {
+        statement.setInt(1, tagId);
+        statement.setString(2, getPattern(term));
+
+        if (ids != null) {
+          statement.setArray(3,
+              Database.createConnArray(mConnection, ids.asCollection()));
+        }
+
+        ResultSet rs = statement.executeQuery();
+
+        try {
+          while (rs.next()) {
+            handler.processRow(rs);
+          }
+        } finally {
+          rs.close();
+        }
+      } finally {
+        statement.close();
+      }
+
+      return handler.getIds();
+    }
+  }
+
+  /**
+   * Looks up search terms in the database using a JdbcTemplate.
+   */
+  private static class JdbcTermSource implements SearchTermSource {
+
+    /** The m connection. */
+    private final JdbcTemplate mConnection;
+
+    /**
+     * Instantiates a new jdbc term source.
+     *
+     * @param connection the connection
+     */
+    public JdbcTermSource(JdbcTemplate connection) {
+      mConnection = connection;
+    }
+
+    @Override
+    public long estimate(int tagId, SearchTerm term) {
+      KEYWORDS.ensureLoaded(mConnection, KEYWORDS_SQL);
+      KEYWORD_COUNTS.ensureLoaded(mConnection, KEYWORD_COUNTS_SQL);
+
+      return Search.estimate(term);
+    }
+
+    @Override
+    public IdBitmap match(int tagId, SearchTerm term) {
+      IdBitmapHandler handler = new IdBitmapHandler();
+
+      mConnection.query(getSql(term, false),
+          new Object[] { tagId, getPattern(term) },
+          handler);
+
+      return handler.getIds();
+    }
+
+    @Override
+    public IdBitmap filter(final int tagId,
+        final SearchTerm term,
+        final IdBitmap ids) {
+      IdBitmapHandler handler = new IdBitmapHandler();
+
+      mConnection.query(getSql(term, true), new PreparedStatementSetter() {
+        @Override
+        public void setValues(PreparedStatement ps) throws SQLException {
+          ps.setInt(1, tagId);
+          ps.setString(2, getPattern(term));
+          ps.setArray(3,
+              Database.createConnArray(ps.getConnection(),
+                  ids.asCollection()));
+        }
+      }, handler);
+
+      return handler.getIds();
     }
   }
 }
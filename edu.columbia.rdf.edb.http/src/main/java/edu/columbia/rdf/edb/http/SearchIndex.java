@@ -0,0 +1,327 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * In memory inverted index of the search tables mapping each (tag, keyword)
+ * pair to the bitmap of samples indexed with it. Prefix matches are a range
+ * lookup in the keyword dictionary shared with Search. This allows searches
+ * to be evaluated without querying the database.
+ *
+ * The index is disabled by default. When enabled it is loaded either at
+ * startup or on first use. After clear(), one thread rebuilds the index
+ * while searches keep using the previous one until the new index is swapped
+ * in.
+ *
+ * @author Antony Holmes
+ */
+public class SearchIndex implements SearchTermSource {
+
+  /** The Constant POSTINGS_SQL. */
+  private static final String POSTINGS_SQL = "SELECT tags_keywords_search.tag_id, tags_keywords_search.keyword_id, tags_samples_search.sample_id FROM tags_samples_search, tags_keywords_search WHERE tags_samples_search.tag_keyword_search_id = tags_keywords_search.id";
+
+  /** The Constant EMPTY. */
+  private static final IdBitmap EMPTY = new IdBitmap();
+
+  /** Whether searches should use the index. */
+  private static final AtomicBoolean ENABLED = new AtomicBoolean(false);
+
+  /** The shared index. */
+  private static final ConcurrentSnapshotStore<SearchIndex> INDEX = new ConcurrentSnapshotStore<SearchIndex>() {
+    @Override
+    protected SearchIndex read(ResultSet rs) throws SQLException {
+      SearchIndex ret = new SearchIndex();
+
+      ret.addKeywords();
+
+      while (rs.next()) {
+        ret.addPosting(rs.getInt(1), rs.getInt(2), rs.getInt(3));
+      }
+
+      return ret;
+    }
+  };
+
+  /** Lower case keyword names to keyword ids for quoted searches. */
+  private final Map<String, int[]> mLowerKeywords = new HashMap<String, int[]>();
+
+  /** Tag id to keyword id to samples. */
+  private final ConcurrentIdValueStore<ConcurrentIdValueStore<IdBitmap>> mPostings = new ConcurrentIdValueStore<ConcurrentIdValueStore<IdBitmap>>();
+
+  /** Tag id to every sample indexed for the tag. */
+  private final ConcurrentIdValueStore<IdBitmap> mTagSamples = new ConcurrentIdValueStore<IdBitmap>();
+
+  /**
+   * Instantiates a new search index. Indexes are only created by load().
+   */
+  private SearchIndex() {
+    // Do nothing
+  }
+
+  /**
+   * Returns the samples of a tag matching a keyword. Unquoted keywords match
+   * any indexed keyword they are a prefix of. Quoted keywords must equal an
+   * indexed keyword, ignoring the case of the indexed keyword.
+   *
+   * @param tagId the tag id
+   * @param keyword the keyword without quotes or a leading dash.
+   * @param quoted whether the keyword was quoted.
+   * @return the matching samples. The bitmap must not be modified.
+   */
+  public IdBitmap match(int tagId, String keyword, boolean quoted) {
+    ConcurrentIdValueStore<IdBitmap> postings = mPostings.get(tagId);
+
+    if (postings == null) {
+      return EMPTY;
+    }
+
+    IdBitmap ret = EMPTY;
+
+    for (int keywordId : getKeywordIds(keyword, quoted)) {
+      IdBitmap samples = postings.get(keywordId);
+
+      if (samples != null) {
+        ret = ret.or(samples);
+      }
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.http.SearchTermSource#match(int,
+   * edu.columbia.rdf.edb.http.SearchTerm)
+   */
+  @Override
+  public IdBitmap match(int tagId, SearchTerm term) {
+    return match(tagId, term.getText(), term.isQuoted());
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.http.SearchTermSource#estimate(int,
+   * edu.columbia.rdf.edb.http.SearchTerm)
+   */
+  @Override
+  public long estimate(int tagId, SearchTerm term) {
+    ConcurrentIdValueStore<IdBitmap> postings = mPostings.get(tagId);
+
+    if (postings == null) {
+      return 0;
+    }
+
+    long ret = 0;
+
+    for (int keywordId : getKeywordIds(term.getText(), term.isQuoted())) {
+      IdBitmap samples = postings.get(keywordId);
+
+      if (samples != null) {
+        ret += samples.size();
+      }
+    }
+
+    return ret;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see edu.columbia.rdf.edb.http.SearchTermSource#filter(int,
+   * edu.columbia.rdf.edb.http.SearchTerm, edu.columbia.rdf.edb.http.IdBitmap)
+   */
+  @Override
+  public IdBitmap filter(int tagId, SearchTerm term, IdBitmap ids) {
+    ConcurrentIdValueStore<IdBitmap> postings = mPostings.get(tagId);
+
+    if (postings == null) {
+      return EMPTY;
+    }
+
+    IdBitmap ret = EMPTY;
+
+    for (int keywordId : getKeywordIds(term.getText(), term.isQuoted())) {
+      IdBitmap samples = postings.get(keywordId);
+
+      // Intersect each posting with the candidates first so that large
+      // postings are never copied.
+      if (samples != null && samples.intersects(ids)) {
+        ret = ret.or(ids.and(samples));
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Gets the ids of the keywords matching a search keyword.
+   *
+   * @param keyword the keyword
+   * @param quoted the quoted
+   * @return the keyword ids
+   */
+  private int[] getKeywordIds(String keyword, boolean quoted) {
+    if (quoted) {
+      int[] ret = mLowerKeywords.get(keyword);
+
+      return ret != null ? ret : new int[0];
+    } else {
+      return Search.KEYWORDS.getPrefix(keyword);
+    }
+  }
+
+  /**
+   * Returns all of the samples indexed for a tag.
+   *
+   * @param tagId the tag id
+   * @return the samples. The bitmap must not be modified.
+   */
+  public IdBitmap getSamples(int tagId) {
+    IdBitmap ret = mTagSamples.get(tagId);
+
+    return ret != null ? ret : EMPTY;
+  }
+
+  /**
+   * Index the lower case names of the keywords in the shared dictionary,
+   * which must already be loaded, for quoted searches.
+   */
+  private void addKeywords() {
+    for (int keywordId : Search.KEYWORDS.getPrefix("")) {
+      addKeyword(keywordId, Search.KEYWORDS.getValue(keywordId));
+    }
+  }
+
+  /**
+   * Adds a keyword.
+   *
+   * @param keywordId the keyword id
+   * @param name the name
+   */
+  private void addKeyword(int keywordId, String name) {
+    String lower = name.toLowerCase();
+
+    int[] ids = mLowerKeywords.get(lower);
+
+    if (ids == null) {
+      ids = new int[] { keywordId };
+    } else {
+      ids = Arrays.copyOf(ids, ids.length + 1);
+      ids[ids.length - 1] = keywordId;
+    }
+
+    mLowerKeywords.put(lower, ids);
+  }
+
+  /**
+   * Adds a sample to the postings of a tag and keyword.
+   *
+   * @param tagId the tag id
+   * @param keywordId the keyword id
+   * @param sampleId the sample id
+   */
+  private void addPosting(int tagId, int keywordId, int sampleId) {
+    ConcurrentIdValueStore<IdBitmap> postings = mPostings.get(tagId);
+
+    if (postings == null) {
+      postings = new ConcurrentIdValueStore<IdBitmap>();
+      mPostings.put(tagId, postings);
+      mTagSamples.put(tagId, new IdBitmap());
+    }
+
+    IdBitmap samples = postings.get(keywordId);
+
+    if (samples == null) {
+      samples = new IdBitmap();
+      postings.put(keywordId, samples);
+    }
+
+    samples.add(sampleId);
+
+    mTagSamples.get(tagId).add(sampleId);
+  }
+
+  /**
+   * Enable or disable the use of the index by searches.
+   *
+   * @param enabled the new enabled
+   */
+  public static void setEnabled(boolean enabled) {
+    ENABLED.set(enabled);
+  }
+
+  /**
+   * Checks if is enabled.
+   *
+   * @return true, if is enabled
+   */
+  public static boolean isEnabled() {
+    return ENABLED.get();
+  }
+
+  /**
+   * Returns the index, loading it if necessary.
+   *
+   * @param connection the connection
+   * @return the index or null if the index is not enabled.
+   * @throws SQLException the SQL exception
+   */
+  public static SearchIndex get(Connection connection) throws SQLException {
+    if (!ENABLED.get()) {
+      return null;
+    }
+
+    Search.KEYWORDS.ensureLoaded(connection, Search.KEYWORDS_SQL);
+
+    return INDEX.ensureLoaded(connection, POSTINGS_SQL);
+  }
+
+  /**
+   * Returns the index, loading it if necessary.
+   *
+   * @param connection the connection
+   * @return the index or null if the index is not enabled.
+   */
+  public static SearchIndex get(JdbcTemplate connection) {
+    if (!ENABLED.get()) {
+      return null;
+    }
+
+    Search.KEYWORDS.ensureLoaded(connection, Search.KEYWORDS_SQL);
+
+    return INDEX.ensureLoaded(connection, POSTINGS_SQL);
+  }
+
+  /**
+   * Rebuild the index on next use. Searches keep using the current index
+   * until the rebuild has finished.
+   */
+  public static void clear() {
+    INDEX.invalidate();
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+/**
+ * How searches are executed when the in memory search index is not
+ * enabled.
+ */
+public enum SearchMode {
+  /** Query each term separately, cheapest first. */
+  PLANNED,
+
+  /** Compile the whole search into one SQL statement. */
+  SQL;
+
+  /**
+   * Parse a mode name such as "planned" or "sql".
+   *
+   * @param name the name
+   * @return the mode or PLANNED if the name is not recognized.
+   */
+  public static SearchMode parse(String name) {
+    if (name != null && name.trim().equalsIgnoreCase("sql")) {
+      return SQL;
+    } else {
+      return PLANNED;
+    }
+  }
+}
@@ -0,0 +1,580 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import org.jebtk.core.search.SearchStackElement;
+
+/**
+ * Converts a search in reverse polish notation into an expression tree that
+ * can be evaluated more cheaply than executing every term in order. The
+ * children of an AND are evaluated in ascending order of their estimated
+ * size, each one only against the samples matched so far, and evaluation
+ * stops as soon as no samples are left. Excluded terms are applied as
+ * filters to the samples matched so far rather than being fetched in full.
+ *
+ * Excluded terms keep their existing meaning: an AND of only excluded terms
+ * matches nothing, an OR with one excluded term is the other side, and an
+ * OR of two excluded terms is the union of the samples they match.
+ *
+ * @author Antony Holmes
+ */
+public class SearchPlan {
+
+  /**
+   * A node in the expression tree.
+   */
+  private abstract static class Node {
+
+    /**
+     * Estimate the number of samples matched by the node.
+     *
+     * @param source the source
+     * @param tagId the tag id
+     * @return the estimate
+     * @throws SQLException the SQL exception
+     */
+    public abstract long estimate(SearchTermSource source, int tagId)
+        throws SQLException;
+
+    /**
+     * Evaluate the node.
+     *
+     * @param source the source
+     * @param tagId the tag id
+     * @param ids if not null, only samples in this set are returned.
+     * @return the samples
+     * @throws SQLException the SQL exception
+     */
+    public abstract IdBitmap eval(SearchTermSource source,
+        int tagId,
+        IdBitmap ids) throws SQLException;
+
+    /**
+     * Append the node as a parenthesized SQL set expression.
+     *
+     * @param buffer the buffer
+     * @param terms the terms referenced so far.
+     */
+    public abstract void toSql(StringBuilder buffer, List<SearchTerm> terms);
+  }
+
+  /**
+   * Matches nothing.
+   */
+  private static class EmptyNode extends Node {
+    @Override
+    public long estimate(SearchTermSource source, int tagId) {
+      return 0;
+    }
+
+    @Override
+    public IdBitmap eval(SearchTermSource source, int tagId, IdBitmap ids) {
+      return new IdBitmap();
+    }
+
+    @Override
+    public void toSql(StringBuilder buffer, List<SearchTerm> terms) {
+      buffer.append("(SELECT 0 AS sample_id WHERE FALSE)");
+    }
+
+    @Override
+    public String toString() {
+      return "()";
+    }
+  }
+
+  /**
+   * A single search term. Whether the term is excluded is decided by its
+   * parent; a term node always evaluates to the samples the term matches.
+   */
+  private static class TermNode extends Node {
+
+    /** The m term. */
+    private final SearchTerm mTerm;
+
+    /** The cached estimate or -1 if it has not been made. */
+    private long mEstimate = -1;
+
+    /**
+     * Instantiates a new term node.
+     *
+     * @param term the term
+     */
+    public TermNode(SearchTerm term) {
+      mTerm = term;
+    }
+
+    @Override
+    public long estimate(SearchTermSource source, int tagId)
+        throws SQLException {
+      if (mEstimate == -1) {
+        mEstimate = source.estimate(tagId, mTerm);
+      }
+
+      return mEstimate;
+    }
+
+    @Override
+    public IdBitmap eval(SearchTermSource source, int tagId, IdBitmap ids)
+        throws SQLException {
+      if (ids == null) {
+        return source.match(tagId, mTerm);
+      } else {
+        return source.filter(tagId, mTerm, ids);
+      }
+    }
+
+    @Override
+    public void toSql(StringBuilder buffer, List<SearchTerm> terms) {
+      int i = 0;
+
+      // Terms that differ only in whether they are excluded match the same
+      // samples so can share a table
+      while (i < terms.size() && !(terms.get(i).getText()
+          .equals(mTerm.getText())
+          && terms.get(i).isQuoted() == mTerm.isQuoted())) {
+        ++i;
+      }
+
+      if (i == terms.size()) {
+        terms.add(mTerm);
+      }
+
+      buffer.append("(SELECT sample_id FROM ").append(TABLE_PREFIX).append(i)
+          .append(")");
+    }
+
+    @Override
+    public String toString() {
+      return mTerm.toString();
+    }
+  }
+
+  /**
+   * The intersection of one or more nodes less the samples matching the
+   * excluded terms.
+   */
+  private static class AndNode extends Node {
+
+    /** The m include. */
+    private final List<Node> mInclude = new ArrayList<Node>();
+
+    /** The m exclude. */
+    private final List<Node> mExclude = new ArrayList<Node>();
+
+    /**
+     * Add a child, merging the children of a nested AND.
+     *
+     * @param node the node
+     */
+    public void add(Node node) {
+      if (node instanceof AndNode) {
+        mInclude.addAll(((AndNode) node).mInclude);
+        mExclude.addAll(((AndNode) node).mExclude);
+      } else if (excluded(node)) {
+        mExclude.add(node);
+      } else {
+        mInclude.add(node);
+      }
+    }
+
+    @Override
+    public long estimate(SearchTermSource source, int tagId)
+        throws SQLException {
+      long ret = Long.MAX_VALUE;
+
+      for (Node node : mInclude) {
+        ret = Math.min(ret, node.estimate(source, tagId));
+      }
+
+      return ret;
+    }
+
+    @Override
+    public IdBitmap eval(SearchTermSource source, int tagId, IdBitmap ids)
+        throws SQLException {
+      IdBitmap ret = ids;
+
+      for (Node node : sort(source, tagId, mInclude)) {
+        ret = node.eval(source, tagId, ret);
+
+        if (ret.isEmpty()) {
+          return ret;
+        }
+      }
+
+      for (Node node : sort(source, tagId, mExclude)) {
+        ret = ret.andNot(node.eval(source, tagId, ret));
+
+        if (ret.isEmpty()) {
+          return ret;
+        }
+      }
+
+      return ret;
+    }
+
+    @Override
+    public void toSql(StringBuilder buffer, List<SearchTerm> terms) {
+      buffer.append('(');
+
+      // INTERSECT binds more tightly than EXCEPT so the excluded samples
+      // are removed from the intersection.
+      for (int i = 0; i < mInclude.size(); ++i) {
+        if (i > 0) {
+          buffer.append(" INTERSECT ");
+        }
+
+        mInclude.get(i).toSql(buffer, terms);
+      }
+
+      for (Node node : mExclude) {
+        buffer.append(" EXCEPT ");
+        node.toSql(buffer, terms);
+      }
+
+      buffer.append(')');
+    }
+
+    @Override
+    public String toString() {
+      return join(" AND ", mInclude, mExclude);
+    }
+  }
+
+  /**
+   * The union of two or more nodes.
+   */
+  private static class OrNode extends Node {
+
+    /** The m children. */
+    private final List<Node> mChildren = new ArrayList<Node>();
+
+    /**
+     * Add a child, merging the children of a nested OR.
+     *
+     * @param node the node
+     */
+    public void add(Node node) {
+      if (node instanceof OrNode) {
+        mChildren.addAll(((OrNode) node).mChildren);
+      } else {
+        mChildren.add(node);
+      }
+    }
+
+    @Override
+    public long estimate(SearchTermSource source, int tagId)
+        throws SQLException {
+      long ret = 0;
+
+      for (Node node : mChildren) {
+        ret += node.estimate(source, tagId);
+      }
+
+      return ret;
+    }
+
+    @Override
+    public IdBitmap eval(SearchTermSource source, int tagId, IdBitmap ids)
+        throws SQLException {
+      IdBitmap ret = new IdBitmap();
+
+      for (Node node : mChildren) {
+        ret = ret.or(node.eval(source, tagId, ids));
+      }
+
+      return ret;
+    }
+
+    @Override
+    public void toSql(StringBuilder buffer, List<SearchTerm> terms) {
+      buffer.append('(');
+
+      for (int i = 0; i < mChildren.size(); ++i) {
+        if (i > 0) {
+          buffer.append(" UNION ");
+        }
+
+        mChildren.get(i).toSql(buffer, terms);
+      }
+
+      buffer.append(')');
+    }
+
+    @Override
+    public String toString() {
+      return join(" OR ", mChildren, Collections.<Node> emptyList());
+    }
+  }
+
+  /** The Constant EMPTY. */
+  private static final Node EMPTY = new EmptyNode();
+
+  /** The prefix of the names of the tables referenced by toSql(). */
+  public static final String TABLE_PREFIX = "t";
+
+  /** The m root. */
+  private final Node mRoot;
+
+  /**
+   * Instantiates a new search plan.
+   *
+   * @param root the root
+   */
+  private SearchPlan(Node root) {
+    mRoot = root;
+  }
+
+  /**
+   * Find the samples matching the search.
+   *
+   * @param source where to look up terms.
+   * @param tagId the tag id
+   * @return the samples
+   * @throws SQLException the SQL exception
+   */
+  public IdBitmap evaluate(SearchTermSource source, int tagId)
+      throws SQLException {
+    return mRoot.eval(source, tagId, null);
+  }
+
+  /**
+   * Returns true if the plan can never match anything.
+   *
+   * @return true, if is empty
+   */
+  public boolean isEmpty() {
+    return mRoot == EMPTY;
+  }
+
+  /**
+   * Compile the plan into a SQL set expression using INTERSECT, UNION and
+   * EXCEPT. The expression selects a sample_id column from tables named
+   * t0, t1, ..., where table i must hold the samples matching the i-th
+   * entry added to terms. The caller is expected to define these, for
+   * example as common table expressions.
+   *
+   * @param terms a list to add the terms referenced by the expression to.
+   * @return the sql
+   */
+  public String toSql(List<SearchTerm> terms) {
+    StringBuilder buffer = new StringBuilder();
+
+    mRoot.toSql(buffer, terms);
+
+    return buffer.toString();
+  }
+
+  /**
+   * Returns a normalized representation of the plan. Searches with the same
+   * representation match the same samples.
+   *
+   * @return the string
+   */
+  @Override
+  public String toString() {
+    return mRoot.toString();
+  }
+
+  /**
+   * Create a plan from a search in reverse polish notation.
+   *
+   * @param searchQueue the search queue
+   * @return the search plan
+   */
+  public static SearchPlan parse(List<SearchStackElement> searchQueue) {
+    Deque<Node> tempStack = new ArrayDeque<Node>();
+
+    for (SearchStackElement e : searchQueue) {
+      switch (e.mOp) {
+      case MATCH:
+        tempStack.push(new TermNode(SearchTerm.parse(e.mText)));
+        break;
+      case AND:
+        tempStack.push(and(tempStack.pop(), tempStack.pop()));
+        break;
+      case OR:
+        tempStack.push(or(tempStack.pop(), tempStack.pop()));
+        break;
+      default:
+        break;
+      }
+    }
+
+    Node root = tempStack.pop();
+
+    // A search consisting only of an excluded term matches nothing
+    if (excluded(root)) {
+      root = EMPTY;
+    }
+
+    return new SearchPlan(root);
+  }
+
+  /**
+   * Combine two nodes with AND.
+   *
+   * @param n1 the n 1
+   * @param n2 the n 2
+   * @return the node
+   */
+  private static Node and(Node n1, Node n2) {
+    if (n1 == EMPTY || n2 == EMPTY) {
+      return EMPTY;
+    }
+
+    if (excluded(n1) && excluded(n2)) {
+      // Return nothing
+      return EMPTY;
+    }
+
+    AndNode ret = new AndNode();
+
+    ret.add(n1);
+    ret.add(n2);
+
+    return ret;
+  }
+
+  /**
+   * Combine two nodes with OR. If only one node is excluded, the other is
+   * returned. If both are excluded, the union of the samples they match is
+   * returned.
+   *
+   * @param n1 the n 1
+   * @param n2 the n 2
+   * @return the node
+   */
+  private static Node or(Node n1, Node n2) {
+    if (excluded(n1) && !excluded(n2)) {
+      return n2;
+    } else if (!excluded(n1) && excluded(n2)) {
+      return n1;
+    } else if (n1 == EMPTY) {
+      return n2;
+    } else if (n2 == EMPTY) {
+      return n1;
+    } else {
+      OrNode ret = new OrNode();
+
+      ret.add(n1);
+      ret.add(n2);
+
+      return ret;
+    }
+  }
+
+  /**
+   * Returns true if a node is an excluded term.
+   *
+   * @param node the node
+   * @return true, if successful
+   */
+  private static boolean excluded(Node node) {
+    return node instanceof TermNode && !((TermNode) node).mTerm.getInclude();
+  }
+
+  /**
+   * Sort nodes by their estimated size, smallest first.
+   *
+   * @param source the source
+   * @param tagId the tag id
+   * @param nodes the nodes
+   * @return the sorted nodes
+   * @throws SQLException the SQL exception
+   */
+  private static List<Node> sort(final SearchTermSource source,
+      final int tagId,
+      List<Node> nodes) throws SQLException {
+    if (nodes.size() < 2) {
+      return nodes;
+    }
+
+    final List<Long> estimates = new ArrayList<Long>(nodes.size());
+    List<Integer> indices = new ArrayList<Integer>(nodes.size());
+
+    for (int i = 0; i < nodes.size(); ++i) {
+      estimates.add(nodes.get(i).estimate(source, tagId));
+      indices.add(i);
+    }
+
+    Collections.sort(indices, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer i1, Integer i2) {
+        return estimates.get(i1).compareTo(estimates.get(i2));
+      }
+    });
+
+    List<Node> ret = new ArrayList<Node>(nodes.size());
+
+    for (int i : indices) {
+      ret.add(nodes.get(i));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Join the string representations of nodes. Since AND and OR are
+   * commutative, the nodes are sorted so that equivalent searches have the
+   * same representation.
+   *
+   * @param delimiter the delimiter
+   * @param include the include
+   * @param exclude the exclude
+   * @return the string
+   */
+  private static String join(String delimiter,
+      List<Node> include,
+      List<Node> exclude) {
+    List<String> items = new ArrayList<String>(include.size());
+
+    for (Node node : include) {
+      items.add(node.toString());
+    }
+
+    Collections.sort(items);
+
+    int n = items.size();
+
+    for (Node node : exclude) {
+      items.add(node.toString());
+    }
+
+    Collections.sort(items.subList(n, items.size()));
+
+    StringBuilder buffer = new StringBuilder("(");
+
+    for (int i = 0; i < items.size(); ++i) {
+      if (i > 0) {
+        buffer.append(delimiter);
+      }
+
+      buffer.append(items.get(i));
+    }
+
+    return buffer.append(')').toString();
+  }
+}
@@ -16,23 +16,22 @@
 package edu.columbia.rdf.edb.http;
 
 import java.util.Collection;
-import java.util.Collections;
 
 /**
- * The Class SearchResults.
+ * The Class SearchResults. The ids are held in a compressed bitmap so that
+ * search results can be combined with word level set operations rather than
+ * by building collections of boxed ids.
  */
 public class SearchResults {
 
-  private static final Collection<Integer> EMPTY_SET = Collections.emptySet();
-
-  /** The m values. */
-  private Collection<Integer> mValues;
+  /** The m ids. */
+  private final IdBitmap mIds;
 
   /** The m include. */
-  private boolean mInclude;
+  private final boolean mInclude;
 
   public SearchResults() {
-    this(EMPTY_SET);
+    this(new IdBitmap());
   }
 
   /**
@@ -51,17 +50,46 @@ public class SearchResults {
    * @param include the include
    */
   public SearchResults(Collection<Integer> values, boolean include) {
-    mValues = values;
+    this(IdBitmap.of(values), include);
+  }
+
+  /**
+   * Instantiates a new search results.
+   *
+   * @param ids the ids
+   */
+  public SearchResults(IdBitmap ids) {
+    this(ids, true);
+  }
+
+  /**
+   * Instantiates a new search results. The bitmap is not copied and must not
+   * be modified afterwards.
+   *
+   * @param ids the ids
+   * @param include the include
+   */
+  public SearchResults(IdBitmap ids, boolean include) {
+    mIds = ids;
     mInclude = include;
   }
 
   /**
    * Gets the values.
    *
-   * @return the values
+   * @return the values in ascending order.
    */
   public Collection<Integer> getValues() {
-    return mValues;
+    return mIds.asCollection();
+  }
+
+  /**
+   * Gets the ids.
+   *
+   * @return the ids. The bitmap must not be modified.
+   */
+  public IdBitmap getIds() {
+    return mIds;
   }
 
   /**
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+/**
+ * A single keyword of a search. Keywords in quotation marks must match an
+ * indexed keyword exactly, otherwise they match any keyword they are a prefix
+ * of. Keywords starting with a dash '-' exclude the samples they match.
+ *
+ * @author Antony Holmes
+ */
+public class SearchTerm {
+
+  /** The m text. */
+  private final String mText;
+
+  /** The m quoted. */
+  private final boolean mQuoted;
+
+  /** The m include. */
+  private final boolean mInclude;
+
+  /**
+   * Instantiates a new search term.
+   *
+   * @param text the keyword without quotes or a leading dash.
+   * @param quoted the quoted
+   * @param include the include
+   */
+  public SearchTerm(String text, boolean quoted, boolean include) {
+    mText = text;
+    mQuoted = quoted;
+    mInclude = include;
+  }
+
+  /**
+   * Gets the text.
+   *
+   * @return the text
+   */
+  public String getText() {
+    return mText;
+  }
+
+  /**
+   * Checks if the term was quoted.
+   *
+   * @return true, if is quoted
+   */
+  public boolean isQuoted() {
+    return mQuoted;
+  }
+
+  /**
+   * Gets the include.
+   *
+   * @return the include
+   */
+  public boolean getInclude() {
+    return mInclude;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    StringBuilder buffer = new StringBuilder();
+
+    if (mQuoted) {
+      buffer.append('"');
+    }
+
+    if (!mInclude) {
+      buffer.append('-');
+    }
+
+    buffer.append(mText);
+
+    if (mQuoted) {
+      buffer.append('"');
+    }
+
+    return buffer.toString();
+  }
+
+  /**
+   * Parse a keyword as entered by a user, e.g. B-cell, "B-cell" or -B-cell.
+   *
+   * @param keyword the keyword
+   * @return the search term
+   */
+  public static SearchTerm parse(String keyword) {
+    boolean quoted = keyword.charAt(0) == '"';
+
+    if (quoted) {
+      // Strip quotation marks
+      keyword = keyword.substring(1, keyword.length() - 1);
+    }
+
+    boolean include = keyword.isEmpty() || keyword.charAt(0) != '-';
+
+    if (!include) {
+      // Strip dash at beginning
+      keyword = keyword.substring(1);
+    }
+
+    return new SearchTerm(keyword, quoted, include);
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.SQLException;
+
+/**
+ * Something that can find the samples matching a search term, such as the
+ * database or the in memory search index.
+ *
+ * @author Antony Holmes
+ */
+public interface SearchTermSource {
+
+  /**
+   * Estimate how many samples a term matches. Estimates are only used to
+   * order the evaluation of terms so they need not be exact, but should be
+   * much cheaper than match().
+   *
+   * @param tagId the tag id
+   * @param term the term
+   * @return the estimated number of samples.
+   * @throws SQLException the SQL exception
+   */
+  public long estimate(int tagId, SearchTerm term) throws SQLException;
+
+  /**
+   * Returns the samples matching a term, ignoring whether the term is
+   * excluded.
+   *
+   * @param tagId the tag id
+   * @param term the term
+   * @return the samples
+   * @throws SQLException the SQL exception
+   */
+  public IdBitmap match(int tagId, SearchTerm term) throws SQLException;
+
+  /**
+   * Returns the samples from a set of candidates matching a term. This
+   * should be cheaper than match() when there are few candidates.
+   *
+   * @param tagId the tag id
+   * @param term the term
+   * @param ids the candidate samples
+   * @return the candidates matching the term.
+   * @throws SQLException the SQL exception
+   */
+  public IdBitmap filter(int tagId, SearchTerm term, IdBitmap ids)
+      throws SQLException;
+}
@@ -0,0 +1,53 @@
+package edu.columbia.rdf.edb.http;
+
+import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * A session token issued by /auth/token which can be passed in place of an
+ * API key and TOTP code until it expires.
+ */
+@JsonPropertyOrder({ "status", "token", "expires" })
+public class SessionTokenBean {
+
+  private AuthStatus mStatus;
+  private String mToken;
+  private long mExpires;
+
+  /**
+   * Instantiates a bean for a request that did not authenticate.
+   *
+   * @param status the status
+   */
+  public SessionTokenBean(AuthStatus status) {
+    this(status, null, -1);
+  }
+
+  /**
+   * Instantiates a new session token bean.
+   *
+   * @param status the status
+   * @param token the token
+   * @param expires when the token expires in milliseconds since the epoch.
+   */
+  public SessionTokenBean(AuthStatus status, String token, long expires) {
+    mStatus = status;
+    mToken = token;
+    mExpires = expires;
+  }
+
+  @JsonGetter("status")
+  public AuthStatus getStatus() {
+    return mStatus;
+  }
+
+  @JsonGetter("token")
+  public String getToken() {
+    return mToken;
+  }
+
+  @JsonGetter("expires")
+  public long getExpires() {
+    return mExpires;
+  }
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Issues and verifies short lived session tokens so that clients only need
+ * to pass a TOTP check once rather than on every request. A token records
+ * the person, their user type, when it expires and a stamp derived from the
+ * person's API key and TOTP phrase, and is signed with HMAC-SHA256 over those
+ * fields and the client's IP address. Tokens are only valid from the address
+ * they were issued to.
+ *
+ * Revocation is derived from the database rather than held in memory, so it
+ * is shared by every node and survives restarts: a token only verifies while
+ * the stamp of the person's current credentials matches the one it was issued
+ * with. Changing or deleting a person's API key or TOTP phrase therefore
+ * revokes their tokens. Stamps are cached for STAMP_TTL_MS; revoke(int) drops
+ * a cached stamp so that a change is seen at once on this node. Changing the
+ * secret revokes every token. The signing secret should be set from the
+ * listener so that tokens survive restarts; otherwise a random secret is used.
+ *
+ * @author Antony Holmes
+ */
+public class SessionTokens {
+
+  /** The Constant DEFAULT_TTL_MS. */
+  public static final long DEFAULT_TTL_MS = 900000;
+
+  /** The Constant ALGORITHM. */
+  private static final String ALGORITHM = "HmacSHA256";
+
+  /** Separates the payload and signature of a token. */
+  private static final char SEPARATOR = '.';
+
+  /** Separates the fields of the payload. */
+  private static final String FIELD_SEPARATOR = ":";
+
+  /** The Constant STAMP_TTL_MS. */
+  public static final long STAMP_TTL_MS = 60000;
+
+  /** The Constant MAX_CACHED_STAMPS. */
+  private static final int MAX_CACHED_STAMPS = 1000;
+
+  /** The number of bytes of the credential hash kept in a stamp. */
+  private static final int STAMP_BYTES = 12;
+
+  /** Cached for people who do not exist or have no API key. */
+  private static final String NO_STAMP = "";
+
+  /** The Constant CREDENTIALS_SQL. */
+  private static final String CREDENTIALS_SQL = "SELECT persons.api_key, persons.totp_phrase FROM persons WHERE persons.id = ?";
+
+  /** The Constant STAMP_MAPPER. */
+  private static final RowMapper<String> STAMP_MAPPER = new RowMapper<String>() {
+    @Override
+    public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+      return stamp(rs.getString(1), rs.getString(2));
+    }
+  };
+
+  /** The signing key. */
+  private static final AtomicReference<SecretKeySpec> SECRET = new AtomicReference<SecretKeySpec>(
+      randomSecret());
+
+  /** The Constant TTL. */
+  private static final AtomicLong TTL = new AtomicLong(DEFAULT_TTL_MS);
+
+  /** Credential stamps keyed on person id. */
+  private static final ConcurrentKeyValueStore<Integer, String> STAMPS = new ConcurrentKeyValueStore<Integer, String>(
+      MAX_CACHED_STAMPS, ConcurrentKeyValueStore.EvictionPolicy.LRU,
+      STAMP_TTL_MS);
+
+  /**
+   * Instantiates a new session tokens.
+   */
+  private SessionTokens() {
+    // Do nothing
+  }
+
+  /**
+   * Sets the secret used to sign tokens. Changing the secret revokes all
+   * existing tokens.
+   *
+   * @param secret the secret
+   */
+  public static void setSecret(String secret) {
+    SECRET.set(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8),
+        ALGORITHM));
+
+    // Stamps are signed with the secret
+    STAMPS.clear();
+  }
+
+  /**
+   * Sets how long tokens are valid for.
+   *
+   * @param ttl the ttl in milliseconds.
+   */
+  public static void setTtl(long ttl) {
+    TTL.set(ttl);
+  }
+
+  /**
+   * Gets how long tokens are valid for.
+   *
+   * @return the ttl in milliseconds.
+   */
+  public static long getTtl() {
+    return TTL.get();
+  }
+
+  /**
+   * Issue a token for an authenticated user.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param personId the person id
+   * @param userType the user type
+   * @param ipAddress the ip address the token may be used from.
+   * @return the token
+   */
+  public static String issue(JdbcTemplate jdbcTemplate,
+      int personId,
+      UserType userType,
+      String ipAddress) {
+    return issue(jdbcTemplate,
+        personId,
+        userType,
+        ipAddress,
+        System.currentTimeMillis() + TTL.get());
+  }
+
+  /**
+   * Issue a token for an authenticated user.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param personId the person id
+   * @param userType the user type
+   * @param ipAddress the ip address the token may be used from.
+   * @param expires when the token expires in milliseconds since the epoch.
+   * @return the token
+   */
+  public static String issue(JdbcTemplate jdbcTemplate,
+      int personId,
+      UserType userType,
+      String ipAddress,
+      long expires) {
+    String payload = new StringBuilder().append(personId)
+        .append(FIELD_SEPARATOR).append(userType.name())
+        .append(FIELD_SEPARATOR).append(expires).append(FIELD_SEPARATOR)
+        .append(getStamp(jdbcTemplate, personId)).toString();
+
+    return encode(payload.getBytes(StandardCharsets.UTF_8)) + SEPARATOR
+        + encode(sign(payload, ipAddress));
+  }
+
+  /**
+   * Verify a token.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param token the token
+   * @param ipAddress the ip address the token is being used from.
+   * @return an auth bean with status SUCCESS if the token is valid,
+   *         otherwise INVALID_TOKEN.
+   */
+  public static AuthBean verify(JdbcTemplate jdbcTemplate,
+      String token,
+      String ipAddress) {
+    int p = token.indexOf(SEPARATOR);
+
+    if (p == -1) {
+      return invalidToken(token);
+    }
+
+    String payload;
+    byte[] signature;
+
+    try {
+      payload = new String(decode(token.substring(0, p)),
+          StandardCharsets.UTF_8);
+      signature = decode(token.substring(p + 1));
+    } catch (IllegalArgumentException e) {
+      return invalidToken(token);
+    }
+
+    // Check the signature before trusting any of the fields
+    if (!MessageDigest.isEqual(signature, sign(payload, ipAddress))) {
+      return invalidToken(token);
+    }
+
+    String[] fields = payload.split(FIELD_SEPARATOR);
+
+    if (fields.length != 4) {
+      return invalidToken(token);
+    }
+
+    int personId;
+    UserType userType;
+    long expires;
+
+    try {
+      personId = Integer.parseInt(fields[0]);
+      userType = UserType.valueOf(fields[1]);
+      expires = Long.parseLong(fields[2]);
+    } catch (IllegalArgumentException e) {
+      return invalidToken(token);
+    }
+
+    if (System.currentTimeMillis() >= expires) {
+      return invalidToken(token);
+    }
+
+    // The signature is valid so only the credentials of real tokens are
+    // looked up
+    String stamp = getStamp(jdbcTemplate, personId);
+
+    if (stamp.equals(NO_STAMP) || !stamp.equals(fields[3])) {
+      return invalidToken(token);
+    }
+
+    return new AuthBean(personId, token, userType);
+  }
+
+  /**
+   * Returns true if a string has the structure of a token. This does not
+   * check that it is valid.
+   *
+   * @param token the token
+   * @return true, if is token
+   */
+  public static boolean isToken(String token) {
+    return token != null && token.indexOf(SEPARATOR) != -1;
+  }
+
+  /**
+   * Should be called when the API key or TOTP phrase of a person changes. The
+   * cached stamp of the person is dropped so that their earlier tokens stop
+   * verifying on this node at once rather than after STAMP_TTL_MS.
+   *
+   * @param personId the person id
+   */
+  public static void revoke(int personId) {
+    STAMPS.remove(personId);
+  }
+
+  /**
+   * Drop every cached stamp so that credential changes are picked up at
+   * once.
+   */
+  public static void clear() {
+    STAMPS.clear();
+  }
+
+  /**
+   * Gets the stamp of the current credentials of a person.
+   *
+   * @param jdbcTemplate the jdbc template
+   * @param personId the person id
+   * @return the stamp or NO_STAMP if the person does not exist or has no API
+   *         key.
+   */
+  private static String getStamp(JdbcTemplate jdbcTemplate, int personId) {
+    String ret = STAMPS.get(personId);
+
+    if (ret == null) {
+      ret = Query.query(jdbcTemplate, CREDENTIALS_SQL, STAMP_MAPPER, personId);
+
+      if (ret == null) {
+        ret = NO_STAMP;
+      }
+
+      STAMPS.put(personId, ret);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Derive a stamp from credentials. The stamp is keyed on the secret so it
+   * reveals nothing about the API key.
+   *
+   * @param key the API key
+   * @param totpPhrase the TOTP phrase
+   * @return the stamp or NO_STAMP if there is no key.
+   */
+  private static String stamp(String key, String totpPhrase) {
+    if (key == null) {
+      return NO_STAMP;
+    }
+
+    byte[] mac = hmac(key, totpPhrase != null ? totpPhrase : "");
+
+    return encode(Arrays.copyOf(mac, STAMP_BYTES));
+  }
+
+  /**
+   * Sign a payload for use from an ip address.
+   *
+   * @param payload the payload
+   * @param ipAddress the ip address
+   * @return the signature
+   */
+  private static byte[] sign(String payload, String ipAddress) {
+    return hmac(payload, ipAddress);
+  }
+
+  /**
+   * HMAC two strings with the secret.
+   *
+   * @param s1 the first string
+   * @param s2 the second string
+   * @return the mac
+   */
+  private static byte[] hmac(String s1, String s2) {
+    try {
+      Mac mac = Mac.getInstance(ALGORITHM);
+
+      mac.init(SECRET.get());
+
+      mac.update(s1.getBytes(StandardCharsets.UTF_8));
+      mac.update((byte) 0);
+      mac.update(s2.getBytes(StandardCharsets.UTF_8));
+
+      return mac.doFinal();
+    } catch (GeneralSecurityException e) {
+      // HmacSHA256 is always available
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Encode.
+   *
+   * @param bytes the bytes
+   * @return the string
+   */
+  private static String encode(byte[] bytes) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  /**
+   * Decode.
+   *
+   * @param s the s
+   * @return the byte[]
+   */
+  private static byte[] decode(String s) {
+    return Base64.getUrlDecoder().decode(s);
+  }
+
+  /**
+   * Create a random secret so that tokens can be issued even if no secret
+   * is configured. Such tokens do not survive a restart.
+   *
+   * @return the secret key spec
+   */
+  private static SecretKeySpec randomSecret() {
+    byte[] secret = new byte[32];
+
+    new SecureRandom().nextBytes(secret);
+
+    return new SecretKeySpec(secret, ALGORITHM);
+  }
+
+  /**
+   * Invalid token.
+   *
+   * @param token the token
+   * @return the auth bean
+   */
+  private static AuthBean invalidToken(String token) {
+    return new AuthBean(token, AuthStatus.INVALID_TOKEN);
+  }
+}
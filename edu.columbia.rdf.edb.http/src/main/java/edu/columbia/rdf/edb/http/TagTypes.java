@@ -0,0 +1,130 @@
+/**
+ * Copyright 2017 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.edb.http;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Records which of the sample tag tables hold values for each tag so that
+ * lookups only query the tables a tag can be in. Types are bit flags since
+ * a tag may have values in more than one table. Tags missing from the
+ * registry, such as tags added since it was loaded, are reported as being in
+ * every table so that all of them are probed. The registry is reloaded when
+ * the data version changes or once it reaches a maximum age, which bounds
+ * how long a tag that gains values in another table is routed to too few
+ * tables.
+ *
+ * @author Antony Holmes
+ */
+public class TagTypes {
+
+  /** Values in tags_sample. */
+  public static final int TEXT = 1;
+
+  /** Values in tags_sample_int. */
+  public static final int INT = 2;
+
+  /** Values in tags_sample_float. */
+  public static final int FLOAT = 4;
+
+  /** Values may be in any table. */
+  public static final int ALL = TEXT | INT | FLOAT;
+
+  /** The Constant TAG_TYPES_SQL. */
+  private static final String TAG_TYPES_SQL = "SELECT DISTINCT tags_sample.tag_id, "
+      + TEXT + " FROM tags_sample UNION SELECT DISTINCT tags_sample_int.tag_id, "
+      + INT + " FROM tags_sample_int UNION SELECT DISTINCT tags_sample_float.tag_id, "
+      + FLOAT + " FROM tags_sample_float";
+
+  /** Tag ids to the types of the tables they have values in. */
+  private static final ConcurrentIdIdStore TYPES = new ConcurrentIdIdStore(
+      ConcurrentIdIdStore.DEFAULT_MAX_AGE_MS);
+
+  static {
+    DataVersion.register(TYPES);
+  }
+
+  /**
+   * Returns the types of the tables holding values of a tag.
+   *
+   * @param connection the connection
+   * @param tag the tag
+   * @return the types as a combination of TEXT, INT and FLOAT, or ALL if
+   *         the tag is not in the registry.
+   * @throws SQLException the SQL exception
+   */
+  public static int getTypes(Connection connection, int tag)
+      throws SQLException {
+    load(connection);
+
+    return getTypes(tag);
+  }
+
+  /**
+   * Returns the types of the tables holding values of any of a set of tags.
+   *
+   * @param connection the connection
+   * @param tags the tags
+   * @return the types
+   * @throws SQLException the SQL exception
+   */
+  public static int getTypes(Connection connection, Collection<Integer> tags)
+      throws SQLException {
+    load(connection);
+
+    int ret = 0;
+
+    for (int tag : tags) {
+      ret |= getTypes(tag);
+
+      if (ret == ALL) {
+        break;
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the types of a tag from the loaded registry.
+   *
+   * @param tag the tag
+   * @return the types or ALL if the tag is not in the registry.
+   */
+  private static int getTypes(int tag) {
+    int ret = 0;
+
+    for (int type : TYPES.getValues(tag)) {
+      ret |= type;
+    }
+
+    return ret != 0 ? ret : ALL;
+  }
+
+  /**
+   * Make sure the registry is loaded and current.
+   *
+   * @param connection the connection
+   * @throws SQLException the SQL exception
+   */
+  private static void load(Connection connection) throws SQLException {
+    DataVersion.check(connection);
+
+    TYPES.ensureLoaded(connection, TAG_TYPES_SQL);
+  }
+}
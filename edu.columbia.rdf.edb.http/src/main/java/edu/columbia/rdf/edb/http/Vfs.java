@@ -58,8 +58,19 @@ public class Vfs {
   /** The Constant SAMPLE_FILE_IDS_SQL. */
   private static final String SAMPLE_FILE_IDS_SQL = "SELECT sample_files.vfs_id FROM sample_files WHERE sample_files.sample_id = ? ORDER BY sample_files.vfs_id";
 
-  /** The Constant VFS_SAMPLE_IDS_SQL. */
-  private static final String VFS_SAMPLE_IDS_SQL = "SELECT sample_files.sample_id FROM sample_files WHERE sample_files.vfs_id = ?";
+  /** The Constant VFS_SAMPLES_SQL. */
+  private static final String VFS_SAMPLES_SQL = "SELECT sample_files.vfs_id, sample_files.sample_id FROM sample_files";
+
+  /**
+   * In memory map of files to samples, loaded on first use and reloaded when
+   * the data version changes or the map reaches its maximum age.
+   */
+  private static final ConcurrentIdIdStore VFS_SAMPLES = new ConcurrentIdIdStore(
+      ConcurrentIdIdStore.DEFAULT_MAX_AGE_MS);
+
+  static {
+    DataVersion.register(VFS_SAMPLES);
+  }
 
   /** The Constant SAMPLE_FILE_DIR_SQL. */
   private static final String SAMPLE_FILE_DIR_SQL = "SELECT min(sample_files.vfs_id) FROM sample_files WHERE sample_files.sample_id = ? GROUP BY sample_files.sample_id";
@@ -270,7 +281,50 @@ public class Vfs {
    */
   public static List<Integer> getSamples(Connection connection, int vfsId)
       throws SQLException {
-    return Database.getIds(connection, VFS_SAMPLE_IDS_SQL, vfsId);
+    DataVersion.check(connection);
+
+    VFS_SAMPLES.ensureLoaded(connection, VFS_SAMPLES_SQL);
+
+    int[] ids = VFS_SAMPLES.getValues(vfsId);
+
+    List<Integer> ret = new ArrayList<Integer>(ids.length);
+
+    for (int id : ids) {
+      ret.add(id);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the files in a set that belong to at least one of the given
+   * samples. The file to sample map is loaded once for all of the files.
+   *
+   * @param connection the connection
+   * @param vfsIds the vfs ids
+   * @param sampleIds the sample ids
+   * @return the vfs ids with a sample in sampleIds.
+   * @throws SQLException the SQL exception
+   */
+  public static IdBitmap getFilesInSamples(Connection connection,
+      IdBitmap vfsIds,
+      IdBitmap sampleIds) throws SQLException {
+    DataVersion.check(connection);
+
+    VFS_SAMPLES.ensureLoaded(connection, VFS_SAMPLES_SQL);
+
+    IdBitmap ret = new IdBitmap();
+
+    for (int vfsId : vfsIds.toArray()) {
+      for (int sampleId : VFS_SAMPLES.getValues(vfsId)) {
+        if (sampleIds.contains(sampleId)) {
+          ret.add(vfsId);
+          break;
+        }
+      }
+    }
+
+    return ret;
   }
 
   /**
@@ -342,13 +396,7 @@ public class Vfs {
 
   public static List<VfsFileBean> getFiles(JdbcTemplate connection,
       Collection<Integer> ids) throws SQLException {
-    List<VfsFileBean> ret = new ArrayList<VfsFileBean>(1000);
-
-    for (int id : ids) {
-      ret.add(getFile(connection, id));
-    }
-
-    return ret;
+    return Query.asBatchList(connection, VFS_FILE_SQL, VFS_BEAN_MAPPER, ids);
   }
 
   /**
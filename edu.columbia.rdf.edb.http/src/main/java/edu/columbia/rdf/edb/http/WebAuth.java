@@ -57,40 +57,7 @@ public class WebAuth {
       JdbcTemplate jdbcTemplate,
       int person,
       String ipAddress) {
-    Cache cache = CacheManager.getInstance().getCache("ip_add_cache");
-
-    Element ce = cache.get(person);
-
-    if (ce != null) {
-      // If the cache contains blocked, then this user is not allowed
-      // to login in from this ip address
-
-      String cachedIpAddress = (String) ce.getObjectValue();
-
-      if (cachedIpAddress.equals(WebAuthentication.BLOCKED_IP_ADDRESS)) {
-        return false;
-      }
-
-      if (cachedIpAddress.equals(ipAddress)) {
-        return true;
-      }
-    }
-
-    // We had a cache miss or else the ip address does not match the
-    // cache so we resort to a longer check
-
-    boolean valid = false;
-
-    int count = Query
-        .asInt(jdbcTemplate, VALIDATE_IP_SQL, person, ipAddress);
-
-    if (count > 0) {
-      cache.put(new Element(person, ipAddress));
-    } else {
-      cache.put(new Element(person, WebAuthentication.BLOCKED_IP_ADDRESS));
-    }
-
-    return valid;
+    return IpAllowList.isAllowed(jdbcTemplate, person, ipAddress);
   }
 
   /**
@@ -114,7 +81,17 @@ public class WebAuth {
    * @return
    */
   public static int getUserIdFromAPIKey(JdbcTemplate jdbcTemplate, String key) {
-    return Query.asInt(jdbcTemplate, USER_ID_FROM_APK_KEY_SQL, key);
+    if (!ApiKeyFilter.mightExist(jdbcTemplate, key)) {
+      return -1;
+    }
+
+    int ret = Query.asInt(jdbcTemplate, USER_ID_FROM_APK_KEY_SQL, key);
+
+    if (ret == -1) {
+      ApiKeyFilter.addInvalid(key);
+    }
+
+    return ret;
   }
 
   /**
@@ -142,6 +119,42 @@ public class WebAuth {
         (long) context.getAttribute("totp-step"));
   }
 
+  /**
+   * Authenticate a user from their cached auth context, their ip address and
+   * a one time random key. Unlike totpAuthUser(), this does not query the
+   * database.
+   *
+   * @param context the context
+   * @param request the request
+   * @param auth the auth context of the user's API key.
+   * @param totp the totp
+   * @return true, if successful
+   */
+  public static boolean totpAuthUser(ServletContext context,
+      HttpServletRequest request,
+      AuthContext auth,
+      int totp) {
+
+    if (!WebAuthentication.checkAuthEnabled(context)) {
+      return true;
+    }
+
+    if (!auth.isAllowedIPAddress(request.getRemoteAddr())) {
+      return false;
+    }
+
+    String phrase = auth.getTotpPhrase();
+
+    if (TextUtils.isNullOrEmpty(phrase)) {
+      return false;
+    }
+
+    return totpAuth(auth.getPersonId(),
+        phrase,
+        totp,
+        (long) context.getAttribute("totp-step"));
+  }
+
   /**
    * Totp auth user.
    *
@@ -249,7 +262,7 @@ public class WebAuth {
    * @param step the step
    * @return true, if successful
    */
-  private static boolean totpAuth(int userId, String phrase, int totp, long step) {
+  static boolean totpAuth(int userId, String phrase, int totp, long step) {
     return totpAuth(userId, phrase, totp, step, System.currentTimeMillis(), 0);
   }
 
@@ -20,9 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.text.ParseException;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Collections;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -73,6 +71,19 @@ public class WebAuthentication {
   // experiment_permissions.person_id
   // = ?";
 
+  /** The Constant MAX_FILE_VIEWS_BYTES. */
+  private static final long MAX_FILE_VIEWS_BYTES = 32 * 1024 * 1024;
+
+  /** The Constant FILE_VIEWS_TTL_MS. */
+  private static final long FILE_VIEWS_TTL_MS = 600000;
+
+  /**
+   * Whether each user can view each file. Users are evicted as a whole once
+   * the store grows too large or their permissions are ten minutes old.
+   */
+  private static final ConcurrentIdStore FILE_VIEWS = new ConcurrentIdStore(
+      MAX_FILE_VIEWS_BYTES, FILE_VIEWS_TTL_MS);
+
   // private final static String VFS_PERMISSIONS_SQL =
   // "SELECT vfs_permissions.id FROM vfs_permissions WHERE
   // vfs_permissions.vfs_id
@@ -96,7 +107,7 @@ public class WebAuthentication {
   public static final String TOTP_PHRASE_SQL = "SELECT persons.totp_phrase FROM persons WHERE persons.id = ?";
 
   /** The Constant SQL_LOGIN_ATTEMPT. */
-  private static final String SQL_LOGIN_ATTEMPT = "INSERT INTO login_attempts (person_id, ip_address, success) VALUES (?, ?, ?)";
+  public static final String SQL_LOGIN_ATTEMPT = "INSERT INTO login_attempts (person_id, ip_address, success) VALUES (?, ?, ?)";
 
   /** The Constant USER_TYPE_SQL. */
   private static final String USER_TYPE_SQL = "SELECT persons.user_type_id FROM persons WHERE persons.id = ?";
@@ -134,31 +145,11 @@ public class WebAuthentication {
   public static int validateIpLogin(Connection connection, String ipAddress)
       throws SQLException, ParseException {
 
-    int userId = -1;
-
     if (ipAddress == null) {
-      return userId;
-    }
-
-    PreparedStatement statement = connection.prepareStatement(LOGIN_IP_SQL);
-
-    try {
-      DatabaseResultsTable table = JDBCConnection.getTable(statement);
-
-      for (int i = 0; i < table.getRowCount(); ++i) {
-        String ip = table.getString(i, 0);
-
-        if (ipAddress.startsWith(ip) || ip.equals("*")) {
-          userId = table.getInt(i, 1);
-
-          break;
-        }
-      }
-    } finally {
-      statement.close();
+      return -1;
     }
 
-    return userId;
+    return IpAllowList.getPerson(connection, ipAddress);
   }
 
   /**
@@ -370,8 +361,18 @@ public class WebAuthentication {
   public static boolean canViewSample(Connection connection,
       final Collection<Integer> sampleIds,
       int userId) throws SQLException {
+    if (sampleIds.isEmpty()) {
+      return false;
+    }
+
+    if (getIsAdminOrSuper(connection, userId)) {
+      return true;
+    }
+
+    IdBitmap visible = Groups.userSamples(connection, userId);
+
     for (int sampleId : sampleIds) {
-      if (canViewSample(connection, sampleId, userId)) {
+      if (visible.contains(sampleId)) {
         return true;
       }
     }
@@ -388,47 +389,17 @@ public class WebAuthentication {
    * @return true, if successful
    * @throws SQLException the SQL exception
    */
-  @SuppressWarnings("unchecked")
   public static boolean canViewSample(Connection connection,
       int sampleId,
       int userId) throws SQLException {
 
-    /*
-     * return canViewObject(connection, sampleId, userId,
-     * CacheManager.getInstance().getCache("sample-view-cache"),
-     * SAMPLE_PERMISSIONS_SQL);
-     */
-
     if (getIsAdminOrSuper(connection, userId)) {
       return true;
     }
 
-    Cache cache = CacheManager.getInstance().getCache("sample-view-cache");
-
-    //
-    // See if the item has been cached as viewable or not.
-    //
-
-    Element ce = cache.get(userId);
-
-    if (ce == null) {
-      ce = new Element(userId, new HashMap<Integer, Boolean>());
-
-      cache.put(ce);
-    }
-
-    Map<Integer, Boolean> viewSet = (Map<Integer, Boolean>) ce.getObjectValue();
-
-    // If we have already tested that we can view the sample, return true
-    if (viewSet.containsKey(sampleId)) {
-      return viewSet.get(sampleId);
-    }
-
-    boolean ret = Groups.userInSampleGroups(connection, userId, sampleId);
-
-    viewSet.put(sampleId, ret);
-
-    return ret;
+    // The samples visible to the user's groups are computed once and
+    // shared by every check
+    return Groups.userInSampleGroups(connection, userId, sampleId);
   }
 
   /*
@@ -471,16 +442,15 @@ public class WebAuthentication {
    * @param context
    * @param objectId
    * @param userId
-   * @param cache
+   * @param views the per user store of whether objects can be viewed.
    * @param sql
    * @return
    * @throws SQLException
    */
-  @SuppressWarnings("unchecked")
   public static boolean canViewObject(Connection connection,
       int objectId,
       int userId,
-      Cache cache,
+      ConcurrentIdStore views,
       String sql) throws SQLException {
 
     // if (!checkViewPermissionsEnabled(context)) {
@@ -497,20 +467,8 @@ public class WebAuthentication {
       // See if the item has been cached as viewable or not.
       //
 
-      Element ce = cache.get(userId);
-
-      if (ce == null) {
-        ce = new Element(userId, new HashMap<Integer, Boolean>());
-
-        cache.put(ce);
-      }
-
-      Map<Integer, Boolean> viewSet = (Map<Integer, Boolean>) ce
-          .getObjectValue();
-
-      // If we have already tested that we can view the sample, return true
-      if (viewSet.containsKey(objectId)) {
-        ret = viewSet.get(objectId);
+      if (views.contains(userId, objectId)) {
+        ret = views.get(userId, objectId);
       } else {
 
         //
@@ -530,7 +488,7 @@ public class WebAuthentication {
           statement.close();
         }
 
-        viewSet.put(objectId, ret);
+        views.put(userId, objectId, ret);
       }
 
       return ret;
@@ -571,67 +529,47 @@ public class WebAuthentication {
       int vfsId,
       int userId) throws SQLException {
 
-    /*
-     * return canViewObject(connection, context, vfsId, userId,
-     * CacheManager.getInstance().getCache("file-view-cache"),
-     * VFS_PERMISSIONS_SQL);
-     */
+    return getCanViewFiles(connection, Collections.singleton(vfsId), userId)
+        .contains(vfsId);
+  }
+
+  /**
+   * Returns the files in a set that a user can view. A user can view a file
+   * if they can view one of the samples it belongs to.
+   *
+   * @param connection the connection
+   * @param vfsIds the vfs ids
+   * @param userId the user id
+   * @return the vfs ids the user can view.
+   * @throws SQLException the SQL exception
+   */
+  public static IdBitmap getCanViewFiles(Connection connection,
+      Collection<Integer> vfsIds,
+      int userId) throws SQLException {
+    IdBitmap ids = IdBitmap.of(vfsIds);
 
     // At given privileges you can look at anything
     if (getIsAdminOrSuper(connection, userId)) {
-      return true;
+      return ids;
     }
 
     //
-    // See if the item has been cached as viewable or not.
-    //
-
-    Cache cache = CacheManager.getInstance().getCache("file-view-cache");
-
-    Element ce = cache.get(userId);
-
-    if (ce == null) {
-      ce = new Element(userId, new HashMap<Integer, Boolean>());
-
-      cache.put(ce);
-    }
-
-    @SuppressWarnings("unchecked")
-    Map<Integer, Boolean> viewSet = (Map<Integer, Boolean>) ce.getObjectValue();
-
-    // If we have already tested that we can view the sample, return true
-    if (viewSet.containsKey(vfsId)) {
-      return viewSet.get(vfsId);
-    }
-
+    // Only look up the files that have not been cached as viewable or not
     //
-    // First see if we can find samples associated with the
-    // vsf id
 
-    List<Integer> ids = Vfs.getSamples(connection, vfsId);
+    IdBitmap unknown = FILE_VIEWS.getUnknown(userId, ids);
 
-    if (canViewSample(connection, ids, userId)) {
-      viewSet.put(vfsId, true);
+    if (!unknown.isEmpty()) {
+      // Experiment files are not checked, so a file is only viewable if
+      // one of its samples is
+      IdBitmap allowed = Vfs.getFilesInSamples(connection,
+          unknown,
+          Groups.userSamples(connection, userId));
 
-      return true;
+      FILE_VIEWS.put(userId, unknown, allowed);
     }
 
-    // See if it is an experiment
-
-    // ids = Vfs.getExperiments(connection, vfsId);
-
-    // if (canViewExperiment(connection, ids, userId)) {
-    // viewSet.put(vfsId, true);
-    //
-    // return true;
-    // }
-
-    // The file is not viewable as an experiment or sample so conclude
-    // user cannot look at it
-
-    viewSet.put(vfsId, false);
-
-    return false;
+    return FILE_VIEWS.intersectAllowed(userId, ids);
   }
 
   /**
@@ -942,6 +880,8 @@ public class WebAuthentication {
 
   /**
    * Logs that the user made an attempt to login and how successful it was.
+   * If a {@link LoginWriter} is running, the attempt is queued and written in
+   * the background, otherwise it is written immediately.
    *
    * @param connection the connection
    * @param userId the user id
@@ -954,6 +894,16 @@ public class WebAuthentication {
       String ipAddress,
       boolean success) throws SQLException {
 
+    LoginWriter writer = LoginWriter.get();
+
+    if (writer != null) {
+      // Attempts that do not fit in the queue are dropped and counted
+      // rather than holding up the login
+      writer.offer(userId, ipAddress, success);
+
+      return;
+    }
+
     PreparedStatement statement = connection
         .prepareStatement(SQL_LOGIN_ATTEMPT);
 
@@ -1019,48 +969,7 @@ public class WebAuthentication {
       ServletContext context,
       int person,
       String ipAddress) throws SQLException {
-    Cache cache = CacheManager.getInstance().getCache("ip_add_cache");
-
-    Element ce = cache.get(person);
-
-    if (ce != null) {
-      // If the cache contains blocked, then this user is not allowed
-      // to login in from this ip address
-
-      String cachedIpAddress = (String) ce.getObjectValue();
-
-      if (cachedIpAddress.equals(BLOCKED_IP_ADDRESS)) {
-        return false;
-      }
-
-      if (cachedIpAddress.equals(ipAddress)) {
-        return true;
-      }
-    }
-
-    // We had a cache miss or else the ip address does not match the
-    // cache so we resort to a longer check
-
-    boolean valid = false;
-
-    PreparedStatement statement = connection.prepareStatement(VALIDATE_IP_SQL);
-
-    try {
-      statement.setInt(1, person);
-      statement.setString(2, ipAddress);
-
-      valid = JDBCConnection.hasRecords(statement);
-    } finally {
-      statement.close();
-    }
-
-    if (valid) {
-      cache.put(new Element(person, ipAddress));
-    } else {
-      cache.put(new Element(person, BLOCKED_IP_ADDRESS));
-    }
-
-    return valid;
+    return IpAllowList.isAllowed(connection, person, ipAddress);
   }
 
   /**